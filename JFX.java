@@ -4,6 +4,11 @@ import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.stage.Stage;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /** Classe di utilità per eseguire codice nel JavaFX Application Thread. Il metodo
  * {@link wsa.JFX#exec(Runnable)} permette di usare classi e metodi della libreria
  * JavaFX anche in un programma che non è un'applicazione JavaFX. I metodi di questa
@@ -13,12 +18,37 @@ public class JFX {
      * attivo, lancia nel background una JavaFX application. Il thread rimane attivo
      * finché non si invoca il metodo {@link JFX#exit()}. Quindi se si invoca questo
      * metodo, per far terminare il programma sarà necessario invocare il metodo
-     * {@link JFX#exit()}.
+     * {@link JFX#exit()}. Un'eccezione lanciata dall'azione è rilanciata al
+     * chiamante: se non è unchecked, è avvolta in una {@link RuntimeException}.
      * @param act  l'azione da eseguire nel JavaFX Application Thread */
-    public static synchronized void exec(Runnable act) {
+    public static void exec(Runnable act) {
+        if (Platform.isFxApplicationThread()) {
+            act.run();
+            return;
+        }
+        try {
+            submit(act).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof RuntimeException) throw (RuntimeException)c;
+            if (c instanceof Error) throw (Error)c;
+            throw new RuntimeException(c);
+        }
+    }
+
+    /** Accoda l'azione act per l'esecuzione nel JavaFX Application Thread e ritorna
+     * subito, senza attendere. Più thread possono accodare azioni contemporaneamente:
+     * le azioni sono eseguite nell'ordine in cui sono state accodate.
+     * @param act  l'azione da eseguire nel JavaFX Application Thread
+     * @throws IllegalStateException se la JavaFX application è terminata
+     * @return un future completato quando l'azione è stata eseguita, oppure
+     * completato con l'eccezione lanciata dall'azione */
+    public static CompletableFuture<Void> submit(Runnable act) {
         if (terminated)
             throw new IllegalStateException("JavaFX Application ia terminated");
-        if (lastThread == null) {
+        if (launched.compareAndSet(false, true)) {
             Thread t = new Thread(() -> {
                 try {
                     Application.launch(App.class);
@@ -27,43 +57,61 @@ public class JFX {
             t.start();
         }
         lastThread = Thread.currentThread();
-        action = act;
-        while (action != null) {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        queue.add(() -> {
             try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) { break; }
-        }
+                act.run();
+                f.complete(null);
+            } catch (Throwable e) {
+                f.completeExceptionally(e);
+            }
+        });
+        // Se l'applicazione non è ancora partita, la coda sarà svuotata da App.start
+        if (started)
+            Platform.runLater(JFX::drain);
+        return f;
     }
 
     /** Fa terminare il JavaFX Application Thread. Se si è invocato il metodo
      * {@link wsa.JFX#exec(Runnable)}, il programma non potrà terminare fino a che
-     * non si invoca questo metodo. */
+     * non si invoca questo metodo. Se la JavaFX application non è ancora partita,
+     * terminerà appena partita, dopo aver eseguito le azioni già accodate. */
     public static void exit() {
-        exitAppOnThreadDeath = true;
+        if (exiting.compareAndSet(false, true)) {
+            Thread t = new Thread(() -> {
+                Thread last = lastThread;
+                try {
+                    if (last != null) last.join();
+                } catch (InterruptedException e) {}
+                terminated = true;
+                if (started) Platform.runLater(Platform::exit);
+            });
+            t.setDaemon(true);
+            t.start();
+        }
     }
 
 
-    private static volatile boolean exitAppOnThreadDeath = false, terminated = false;
+    private static final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean launched = new AtomicBoolean(false), exiting = new AtomicBoolean(false);
+    private static volatile boolean started = false, terminated = false;
     private static volatile Thread lastThread = null;
-    private static volatile Runnable action = null;
-    private static final Runnable executor = new Runnable() {
-        @Override
-        public void run() {
-            if (action != null) action.run();
-            action = null;
-            if (exitAppOnThreadDeath && lastThread != null && !lastThread.isAlive()) {
-                terminated = true;
-                Platform.exit();
-            } else
-                Platform.runLater(this);
-        }
-    };
+
+    /** Esegue nel JavaFX Application Thread tutte le azioni in coda */
+    private static void drain() {
+        Runnable r;
+        while ((r = queue.poll()) != null)
+            r.run();
+    }
 
     public static class App extends Application {
         @Override
         public void start(Stage primaryStage) throws Exception {
             Platform.setImplicitExit(true);
-            Platform.runLater(executor);
+            started = true;
+            drain();
+            // exit() invocato prima della partenza non ha potuto chiamare Platform.exit
+            if (terminated) Platform.exit();
         }
     }
 }
@@ -0,0 +1,149 @@
+package wsa.web;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrawlJournalTest {
+    private static final URI DOM=URI.create("http://host/");
+
+    @TempDir
+    Path dir;
+
+    /** Raccoglie lo stato finale degli URI riletti da un archivio */
+    private static class States implements CrawlJournal.Visitor {
+        URI dom;
+        final Map<URI,URIStates.State> states=new LinkedHashMap<>();
+
+        @Override
+        public void domain(URI d) {
+            dom=d;
+        }
+
+        @Override
+        public void state(URI uri, URIStates.State s) {
+            states.put(uri,s);
+        }
+    }
+
+    @Test
+    void reopen() throws IOException {
+        CrawlerResult r=result(1);
+        try(CrawlJournal j=CrawlJournal.create(dir,DOM)) {
+            j.state(uri(1),URIStates.State.TO_LOAD);
+            j.state(uri(2),URIStates.State.TO_LOAD);
+            j.result(r);
+            j.result(new CrawlerResult(uri(2),false,null,null,new IOException("rotto")));
+            j.state(uri(3),URIStates.State.TO_LOAD);
+            assertNotNull(j.get(uri(1)));
+        }
+        States v=new States();
+        try(CrawlJournal j=CrawlJournal.open(dir,v)) {
+            assertEquals(DOM,v.dom);
+            assertEquals(URIStates.State.LOADED,v.states.get(uri(1)));
+            assertEquals(URIStates.State.ERROR,v.states.get(uri(2)));
+            assertEquals(URIStates.State.TO_LOAD,v.states.get(uri(3)));
+            //i link della pagina sono definiti dal risultato
+            assertEquals(URIStates.State.TO_LOAD,v.states.get(uri(10)));
+            CrawlerResultCodecTest.assertResult(r,j.get(uri(1)));
+            assertEquals("rotto",j.get(uri(2)).exc.getMessage());
+            assertNull(j.get(uri(3)));
+        }
+    }
+
+    @Test
+    void missingArchive() {
+        assertThrows(FileNotFoundException.class,()->CrawlJournal.open(dir.resolve("nessuno"),new States()));
+    }
+
+    @Test
+    void truncatedLog() throws IOException {
+        try(CrawlJournal j=CrawlJournal.create(dir,DOM)) {
+            for(int i=1;i<=100;i++)
+                j.state(uri(i),URIStates.State.TO_LOAD);
+            j.sync();
+            for(int i=1;i<=50;i++)
+                j.result(result(i));
+        }
+        //la scrittura dell'ultimo record (lo stato di uri(50)) è interrotta
+        ResultStoreTest.truncate(lastLog(),3);
+        States v=new States();
+        try(CrawlJournal j=CrawlJournal.open(dir,v)) {
+            for(int i=1;i<50;i++)
+                assertEquals(URIStates.State.LOADED,v.states.get(uri(i)),uri(i).toString());
+            assertEquals(URIStates.State.TO_LOAD,v.states.get(uri(50)));
+            for(int i=51;i<=100;i++)
+                assertEquals(URIStates.State.TO_LOAD,v.states.get(uri(i)));
+            //l'archivio riaperto accetta nuovi record, in un log nuovo
+            j.result(result(50));
+            j.state(uri(101),URIStates.State.TO_LOAD);
+        }
+        v=new States();
+        try(CrawlJournal j=CrawlJournal.open(dir,v)) {
+            assertEquals(URIStates.State.LOADED,v.states.get(uri(50)));
+            assertEquals(URIStates.State.TO_LOAD,v.states.get(uri(101)));
+            CrawlerResultCodecTest.assertResult(result(50),j.get(uri(50)));
+        }
+    }
+
+    @Test
+    void corruptRecord() throws IOException {
+        try(CrawlJournal j=CrawlJournal.create(dir,DOM)) {
+            for(int i=1;i<=100;i++)
+                j.state(uri(i),URIStates.State.TO_LOAD);
+        }
+        Path log=lastLog();
+        long size=Files.size(log);
+        //un byte alterato a metà del log: il CRC del suo record non torna
+        try(RandomAccessFile f=new RandomAccessFile(log.toFile(),"rw")) {
+            f.seek(size/2);
+            int b=f.read();
+            f.seek(size/2);
+            f.write(b^0xFF);
+        }
+        States v=new States();
+        CrawlJournal.open(dir,v).close();
+        assertEquals(DOM,v.dom);
+        List<URI> read=new ArrayList<>(v.states.keySet());
+        //rilegge un prefisso dei record, fino a quello corrotto escluso
+        assertTrue(read.size()>0 && read.size()<100,"riletti "+read.size());
+        for(int i=0;i<read.size();i++)
+            assertEquals(uri(i+1),read.get(i));
+    }
+
+    private Path lastLog() throws IOException {
+        List<Path> logs=new ArrayList<>();
+        try(DirectoryStream<Path> ds=Files.newDirectoryStream(dir,"journal-*.log")) {
+            ds.forEach(logs::add);
+        }
+        logs.sort((a,b)->Integer.compare(gen(a),gen(b)));
+        return logs.get(logs.size()-1);
+    }
+
+    private static int gen(Path log) {
+        String n=log.getFileName().toString();
+        return Integer.parseInt(n.substring("journal-".length(),n.length()-".log".length()));
+    }
+
+    private static URI uri(int i) {
+        return DOM.resolve("p"+i);
+    }
+
+    private static CrawlerResult result(int i) {
+        return new CrawlerResult(uri(i),true,Arrays.asList(uri(i*10),uri(i*10+1)),new ArrayList<>(),null);
+    }
+}
@@ -0,0 +1,138 @@
+package wsa.web;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrawlerResultCodecTest {
+    @Test
+    void varintRoundTrip() throws IOException {
+        int[] values={0,1,127,128,16383,16384,Integer.MAX_VALUE,-1,Integer.MIN_VALUE};
+        int[] sizes={1,1,1,2,2,3,5,5,5};
+        for(int i=0;i<values.length;i++) {
+            ByteArrayOutputStream buf=new ByteArrayOutputStream();
+            CrawlerResultCodec.writeVarint(new DataOutputStream(buf),values[i]);
+            assertEquals(sizes[i],buf.size(),"byte per "+values[i]);
+            DataInputStream in=input(buf);
+            assertEquals(values[i],CrawlerResultCodec.readVarint(in));
+            assertEquals(0,in.available());
+        }
+    }
+
+    @Test
+    void invalidVarint() {
+        byte[] b={(byte)0x80,(byte)0x80,(byte)0x80,(byte)0x80,(byte)0x80,0};
+        assertThrows(IOException.class,()->CrawlerResultCodec.readVarint(new DataInputStream(new ByteArrayInputStream(b))));
+    }
+
+    @Test
+    void stringRoundTrip() throws IOException {
+        ByteArrayOutputStream buf=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(buf);
+        String[] values={null,"","http://a.b/c?d=e","città €𝄞"};
+        for(String s:values)
+            CrawlerResultCodec.writeString(out,s);
+        DataInputStream in=input(buf);
+        for(String s:values)
+            assertEquals(s,CrawlerResultCodec.readString(in));
+        assertEquals(0,in.available());
+    }
+
+    @Test
+    void resultRoundTrip() throws IOException {
+        URI page=URI.create("http://host/a/b.html");
+        List<URI> links=Arrays.asList(URI.create("http://host/a/c.html"),URI.create("http://host/"),
+                page,URI.create("http://host/a/c.html"),URI.create("http://other/x?y=%20z"));
+        List<CrawlerResult> results=Arrays.asList(
+                new CrawlerResult(page,true,links,Arrays.asList("::bad","http://[x"),null),
+                new CrawlerResult(URI.create("http://host/"),true,new ArrayList<>(),new ArrayList<>(),null),
+                new CrawlerResult(URI.create("http://other/x?y=%20z"),false,null,null,null),
+                new CrawlerResult(URI.create("http://host/err"),false,null,null,new FileNotFoundException("manca")),
+                new CrawlerResult(URI.create("http://host/err2"),false,null,null,new IOException()));
+
+        CrawlerResultCodec writer=new CrawlerResultCodec();
+        List<String> defined=new ArrayList<>();
+        ByteArrayOutputStream buf=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(buf);
+        for(CrawlerResult r:results)
+            writer.encode(r,out,defined);
+        //ogni URI distinto è definito una sola volta, nell'ordine degli id
+        assertEquals(6,defined.size());
+        assertEquals(defined.size(),writer.size());
+        for(int i=0;i<defined.size();i++) {
+            assertEquals(defined.get(i),writer.uri(i).toString());
+            assertEquals(i,writer.id(URI.create(defined.get(i))));
+        }
+        assertEquals(-1,writer.id(URI.create("http://host/never")));
+
+        CrawlerResultCodec reader=new CrawlerResultCodec();
+        for(String u:defined)
+            reader.define(u);
+        DataInputStream in=input(buf);
+        for(CrawlerResult r:results)
+            assertResult(r,reader.decode(in));
+        assertEquals(0,in.available());
+    }
+
+    @Test
+    void dictionaryGrows() throws IOException {
+        CrawlerResultCodec writer=new CrawlerResultCodec(), reader=new CrawlerResultCodec();
+        List<String> defined=new ArrayList<>();
+        ByteArrayOutputStream buf=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(buf);
+        List<CrawlerResult> results=new ArrayList<>();
+        for(int i=0;i<5000;i++) {
+            List<URI> links=new ArrayList<>();
+            for(int j=1;j<=3;j++)
+                links.add(URI.create("http://host/p"+(i*7+j*13)%20000));
+            CrawlerResult r=new CrawlerResult(URI.create("http://host/p"+i),true,links,null,null);
+            results.add(r);
+            writer.encode(r,out,defined);
+        }
+        for(String u:defined)
+            reader.define(u);
+        assertEquals(writer.size(),reader.size());
+        DataInputStream in=input(buf);
+        for(CrawlerResult r:results)
+            assertResult(r,reader.decode(in));
+    }
+
+    @Test
+    void undefinedId() throws IOException {
+        CrawlerResultCodec writer=new CrawlerResultCodec();
+        ByteArrayOutputStream buf=new ByteArrayOutputStream();
+        writer.encode(new CrawlerResult(URI.create("http://host/"),false,null,null,null),new DataOutputStream(buf),new ArrayList<>());
+        assertThrows(IOException.class,()->new CrawlerResultCodec().decode(input(buf)));
+    }
+
+    @Test
+    void exceptionFallback() {
+        Exception e=CrawlerResultCodec.exception("non.esiste.Eccezione","msg");
+        assertEquals(Exception.class,e.getClass());
+        assertEquals("non.esiste.Eccezione: msg",e.getMessage());
+        assertEquals(IOException.class,CrawlerResultCodec.exception(IOException.class.getName(),null).getClass());
+    }
+
+    private static DataInputStream input(ByteArrayOutputStream buf) {
+        return new DataInputStream(new ByteArrayInputStream(buf.toByteArray()));
+    }
+
+    static void assertResult(CrawlerResult exp, CrawlerResult act) {
+        assertEquals(exp.uri,act.uri);
+        assertEquals(exp.linkPage,act.linkPage);
+        assertEquals(exp.links,act.links);
+        assertEquals(exp.errRawLinks,act.errRawLinks);
+        if(exp.exc==null)
+            assertNull(act.exc);
+        else {
+            assertEquals(exp.exc.getClass(),act.exc.getClass());
+            assertEquals(exp.exc.getMessage(),act.exc.getMessage());
+        }
+    }
+}
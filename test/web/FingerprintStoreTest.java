@@ -0,0 +1,176 @@
+package wsa.web;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FingerprintStoreTest {
+    @Test
+    void putGetStates() {
+        for(boolean offHeap:new boolean[]{false,true}) {
+            FingerprintStore s=new FingerprintStore(3,offHeap);
+            assertEquals(-1,s.get(uri(1)));
+            assertEquals(-1,s.put(uri(1),0));
+            assertEquals(0,s.put(uri(1),0));
+            assertEquals(0,s.put(uri(1),2));
+            assertEquals(2,s.get(uri(1)));
+            assertEquals(-1,s.put(uri(2),0));
+            assertEquals(1,s.count(0));
+            assertEquals(0,s.count(1));
+            assertEquals(1,s.count(2));
+            assertEquals(Collections.singletonList(uri(1)),list(s.iterator(2)));
+            assertEquals(Collections.singletonList(uri(2)),list(s.iterator(0)));
+        }
+    }
+
+    @Test
+    void invalidStates() {
+        assertThrows(IllegalArgumentException.class,()->new FingerprintStore(0,false));
+        assertThrows(IllegalArgumentException.class,()->new FingerprintStore(256,false));
+    }
+
+    @Test
+    void remove() {
+        FingerprintStore s=new FingerprintStore(2,false);
+        s.put(uri(1),0);
+        assertFalse(s.remove(uri(1),1),"stato diverso");
+        assertFalse(s.remove(uri(2),0),"URI assente");
+        assertTrue(s.remove(uri(1),0));
+        assertEquals(-1,s.get(uri(1)));
+        assertEquals(0,s.count(0));
+        assertFalse(s.iterator(0).hasNext());
+        //un URI rimosso può essere aggiunto di nuovo
+        assertEquals(-1,s.put(uri(1),1));
+        assertEquals(Collections.singletonList(uri(1)),list(s.iterator(1)));
+    }
+
+    @Test
+    void removeKeepsProbeChains() {
+        //molti URI in una tabella piccola: le rimozioni spostano indietro le voci
+        //delle catene di collisione, che devono restare raggiungibili
+        for(boolean offHeap:new boolean[]{false,true}) {
+            FingerprintStore s=new FingerprintStore(2,offHeap);
+            Map<URI,Integer> exp=new HashMap<>();
+            Random rnd=new Random(42);
+            for(int round=0;round<20;round++) {
+                for(int i=0;i<2000;i++) {
+                    URI u=uri(rnd.nextInt(5000));
+                    int st=rnd.nextInt(2);
+                    assertEquals(exp.getOrDefault(u,-1).intValue(),s.put(u,st));
+                    exp.put(u,st);
+                }
+                for(int i=0;i<1500;i++) {
+                    URI u=uri(rnd.nextInt(5000));
+                    Integer st=exp.get(u);
+                    int want=rnd.nextInt(2);
+                    assertEquals(st!=null && st==want,s.remove(u,want));
+                    if(st!=null && st==want)
+                        exp.remove(u);
+                }
+                check(s,exp);
+            }
+        }
+    }
+
+    @Test
+    void compaction() {
+        FingerprintStore s=new FingerprintStore(2,false);
+        Map<URI,Integer> exp=new HashMap<>();
+        //circa 12MB di voci nel log, poi quasi tutte rimosse: il log è compattato
+        //più volte mentre le voci valide si spostano
+        for(int i=0;i<200_000;i++) {
+            s.put(longUri(i),i%2);
+            exp.put(longUri(i),i%2);
+        }
+        for(int i=0;i<200_000;i++)
+            if(i%10!=0) {
+                assertTrue(s.remove(longUri(i),i%2));
+                exp.remove(longUri(i));
+            }
+        check(s,exp);
+        //dopo la compattazione stati e voci restano coerenti
+        for(int i=0;i<200_000;i+=20)
+            assertEquals(0,s.put(longUri(i),1));
+        for(int i=0;i<200_000;i+=20)
+            exp.put(longUri(i),1);
+        for(int i=200_000;i<210_000;i++) {
+            s.put(longUri(i),0);
+            exp.put(longUri(i),0);
+        }
+        check(s,exp);
+    }
+
+    @Test
+    void compactionWithOpenIterator() {
+        FingerprintStore s=new FingerprintStore(1,false);
+        Set<URI> exp=new HashSet<>();
+        for(int i=0;i<100_000;i++) {
+            s.put(longUri(i),0);
+            exp.add(longUri(i));
+        }
+        Iterator<URI> it=s.iterator(0);
+        Set<URI> seen=new HashSet<>();
+        for(int i=0;i<1000;i++)
+            seen.add(it.next());
+        //con l'iteratore in uso il log non è compattato, anche se quasi tutto morto
+        for(int i=0;i<100_000;i++)
+            if(i%10!=0) {
+                s.remove(longUri(i),0);
+                exp.remove(longUri(i));
+            }
+        //l'iteratore prosegue solo sugli URI rimasti e li vede tutti
+        while(it.hasNext()) {
+            URI u=it.next();
+            assertTrue(exp.contains(u),u.toString());
+            assertTrue(seen.add(u),"URI ripetuto");
+        }
+        assertTrue(seen.containsAll(exp));
+        //esaurito l'iteratore, una rimozione può compattare il log
+        assertTrue(s.remove(longUri(0),0));
+        exp.remove(longUri(0));
+        assertEquals(new HashSet<>(list(s.iterator(0))),exp);
+        for(int i=0;i<100_000;i++)
+            assertEquals(exp.contains(longUri(i))?0:-1,s.get(longUri(i)));
+    }
+
+    @Test
+    void fingerprint() {
+        assertEquals(FingerprintStore.fingerprint(uri(1)),FingerprintStore.fingerprint(uri(1).toString()));
+        assertNotEquals(FingerprintStore.fingerprint(uri(1)),FingerprintStore.fingerprint(uri(2)));
+        assertNotEquals(0,FingerprintStore.fingerprint(""));
+    }
+
+    private static void check(FingerprintStore s, Map<URI,Integer> exp) {
+        int[] counts=new int[2];
+        for(Map.Entry<URI,Integer> e:exp.entrySet()) {
+            assertEquals(e.getValue().intValue(),s.get(e.getKey()),e.getKey().toString());
+            counts[e.getValue()]++;
+        }
+        for(int st=0;st<2;st++) {
+            assertEquals(counts[st],s.count(st));
+            List<URI> l=list(s.iterator(st));
+            Set<URI> set=new HashSet<>(l);
+            assertEquals(l.size(),set.size(),"URI ripetuti");
+            for(URI u:set)
+                assertEquals(st,exp.get(u).intValue());
+            assertEquals(counts[st],set.size());
+        }
+    }
+
+    private static List<URI> list(Iterator<URI> it) {
+        List<URI> l=new ArrayList<>();
+        it.forEachRemaining(l::add);
+        return l;
+    }
+
+    private static URI uri(int i) {
+        return URI.create("http://host/p"+i);
+    }
+
+    private static URI longUri(int i) {
+        return URI.create("http://www.host.example/una/pagina/abbastanza/lunga?id="+i);
+    }
+}
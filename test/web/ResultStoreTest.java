@@ -0,0 +1,125 @@
+package wsa.web;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResultStoreTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void putGetReplace() throws IOException {
+        //abbastanza record da far crescere l'indice più volte
+        try(ResultStore s=new ResultStore(dir)) {
+            for(int i=1;i<=10_000;i++)
+                s.put(i,payload(i,0));
+            for(int i=1;i<=10_000;i+=3)
+                s.put(i,payload(i,1));
+            assertEquals(10_000,s.size());
+            assertNull(s.get(20_000));
+            check(s,10_000);
+        }
+        try(ResultStore s=new ResultStore(dir)) {
+            assertEquals(10_000,s.size());
+            check(s,10_000);
+        }
+    }
+
+    @Test
+    void truncatedRecord() throws IOException {
+        try(ResultStore s=new ResultStore(dir)) {
+            for(int i=1;i<=100;i++)
+                s.put(i,payload(i,0));
+        }
+        truncate(dir.resolve("results.dat"),3);
+        try(ResultStore s=new ResultStore(dir)) {
+            for(int i=1;i<100;i++)
+                assertArrayEquals(payload(i,0),s.get(i));
+            //il record troncato è perso, non riletto a metà
+            assertNull(s.get(100));
+            //i nuovi record sono scritti al posto di quello troncato
+            s.put(100,payload(100,1));
+            s.put(101,payload(101,0));
+            assertArrayEquals(payload(100,1),s.get(100));
+        }
+        try(ResultStore s=new ResultStore(dir)) {
+            assertArrayEquals(payload(99,0),s.get(99));
+            assertArrayEquals(payload(100,1),s.get(100));
+            assertArrayEquals(payload(101,0),s.get(101));
+        }
+    }
+
+    @Test
+    void crashBeforeSync() throws IOException {
+        ResultStore s=new ResultStore(dir);
+        for(int i=1;i<=100;i++)
+            s.put(i,payload(i,0));
+        s.sync();
+        //record grandi: una parte arriva sul file di dati senza sync, l'ultima no,
+        //mentre l'indice mappato in memoria li contiene tutti
+        byte[] big=new byte[10_000];
+        for(int i=101;i<=120;i++)
+            s.put(i,big);
+        //il processo termina senza chiudere l'archivio, con l'ultimo record troncato
+        truncate(dir.resolve("results.dat"),5);
+        try(ResultStore r=new ResultStore(dir)) {
+            for(int i=1;i<=100;i++)
+                assertArrayEquals(payload(i,0),r.get(i));
+            int recovered=0;
+            for(int i=101;i<=120;i++) {
+                byte[] b=r.get(i);
+                if(b!=null) {
+                    assertArrayEquals(big,b);
+                    recovered++;
+                }
+            }
+            assertTrue(recovered>0 && recovered<20,"recuperati "+recovered);
+            //gli slot persi non devono nascondere i record scritti dopo l'apertura
+            for(int i=101;i<=120;i++)
+                r.put(i,payload(i,2));
+            for(int i=101;i<=120;i++)
+                assertArrayEquals(payload(i,2),r.get(i));
+        }
+        try(ResultStore r=new ResultStore(dir)) {
+            for(int i=101;i<=120;i++)
+                assertArrayEquals(payload(i,2),r.get(i));
+        }
+    }
+
+    @Test
+    void delete() throws IOException {
+        try(ResultStore s=new ResultStore(dir)) {
+            s.put(1,payload(1,0));
+        }
+        ResultStore.delete(dir);
+        try(ResultStore s=new ResultStore(dir)) {
+            assertEquals(0,s.size());
+            assertNull(s.get(1));
+        }
+    }
+
+    private static void check(ResultStore s, int n) throws IOException {
+        for(int i=1;i<=n;i++)
+            assertArrayEquals(payload(i,(i-1)%3==0?1:0),s.get(i),"record "+i);
+    }
+
+    private static byte[] payload(long fp, int version) {
+        return ("record "+fp+" v"+version).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Elimina gli ultimi n byte di un file, come una scrittura interrotta */
+    static void truncate(Path p, int n) throws IOException {
+        try(FileChannel c=FileChannel.open(p,StandardOpenOption.WRITE)) {
+            c.truncate(Files.size(p)-n);
+        }
+    }
+}
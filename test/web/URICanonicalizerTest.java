@@ -0,0 +1,84 @@
+package wsa.web;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class URICanonicalizerTest {
+    private final URICanonicalizer plain=new URICanonicalizer();
+
+    @Test
+    void sameServerPage() {
+        String[] same={"http://host/a","HTTP://Host/a","http://host:80/a","http://host/a#x",
+                "http://host/./a","http://host/b/../a","http://HOST:80/./b/../a#top"};
+        for(String s:same)
+            assertEquals(URI.create("http://host/a"),plain.apply(URI.create(s)),s);
+    }
+
+    @Test
+    void ports() {
+        assertEquals(URI.create("https://host/"),plain.apply(URI.create("https://host:443/")));
+        assertEquals(URI.create("ftp://host/f"),plain.apply(URI.create("ftp://host:21/f")));
+        //solo la porta di default del proprio schema è eliminata
+        assertEquals(URI.create("https://host:80/"),plain.apply(URI.create("https://host:80/")));
+        assertEquals(URI.create("http://host:8080/"),plain.apply(URI.create("http://host:8080/")));
+    }
+
+    @Test
+    void emptyPath() {
+        assertEquals(URI.create("http://host/"),plain.apply(URI.create("http://host")));
+        assertEquals(URI.create("http://host/?q=1"),plain.apply(URI.create("http://host?q=1")));
+    }
+
+    @Test
+    void keepsCaseAndEscapesOfPathAndQuery() {
+        URI u=URI.create("http://host/A%20b/C?X=%2F&y=Z");
+        assertEquals(u,plain.apply(u));
+        assertEquals(URI.create("http://user@host/p"),plain.apply(URI.create("http://user@Host:80/p")));
+    }
+
+    @Test
+    void queryUntouchedByDefault() {
+        URI u=URI.create("http://host/p?b=2&a=1&&sid=x");
+        assertEquals(u,plain.apply(u));
+    }
+
+    @Test
+    void sortQuery() {
+        URICanonicalizer c=new URICanonicalizer(true,null);
+        assertEquals(URI.create("http://host/p?a=1&b=2&c"),c.apply(URI.create("http://host/p?c&b=2&a=1")));
+        assertEquals(c.apply(URI.create("http://host/p?a=1&b=2")),c.apply(URI.create("http://host/p?b=2&&a=1")));
+    }
+
+    @Test
+    void stripParams() {
+        URICanonicalizer c=new URICanonicalizer(false,p->p.equalsIgnoreCase("sid") || p.startsWith("utm_"));
+        assertEquals(URI.create("http://host/p?b=2&a=1"),c.apply(URI.create("http://host/p?sid=x&b=2&utm_source=y&a=1")));
+        //senza parametri rimasti la query è eliminata
+        assertEquals(URI.create("http://host/p"),c.apply(URI.create("http://host/p?SID=x&utm_medium")));
+        URICanonicalizer both=new URICanonicalizer(true,"sid"::equals);
+        assertEquals(URI.create("http://host/p?a=1&b=2"),both.apply(URI.create("http://host/p?b=2&sid=9&a=1#f")));
+    }
+
+    @Test
+    void unchanged() {
+        String[] same={"mailto:a@host","urn:isbn:123","/relativo/a","relativo#x"};
+        for(String s:same) {
+            URI u=URI.create(s);
+            assertSame(u,plain.apply(u),s);
+        }
+    }
+
+    @Test
+    void idempotent() {
+        URICanonicalizer c=new URICanonicalizer(true,"sid"::equals);
+        String[] uris={"HTTP://Host:80/a/./b/../c?z=1&sid=2&a#f","https://h/","ftp://h:2121/x/..",
+                "http://h/%7Euser/","http://[::1]:80/p"};
+        for(String s:uris) {
+            URI once=c.apply(URI.create(s));
+            assertEquals(once,c.apply(once),s);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package wsa.web;
+
+/** Una factory per AsyncLoader */
+public interface AsyncLoaderFactory {
+    /** Ritorna una nuova istanza di un AsyncLoader
+     * @return una nuova istanza di un AsyncLoader */
+    AsyncLoader newInstance();
+}
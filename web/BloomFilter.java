@@ -0,0 +1,74 @@
+package wsa.web;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Un filtro di Bloom per stringhe, senza lock: più thread possono interrogarlo e
+ * aggiornarlo contemporaneamente. Se {@link BloomFilter#mightContain(String)}
+ * ritorna false la stringa non è mai stata aggiunta; se ritorna true
+ * probabilmente lo è stata, con una probabilità di falso positivo che dipende
+ * dal numero di stringhe aggiunte rispetto a quello previsto alla creazione. */
+public class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long size;
+    private final int hashes;
+
+    /** Crea un filtro dimensionato per il numero di stringhe e la probabilità di
+     * falso positivo dati
+     * @param expected  il numero previsto di stringhe
+     * @param fpp  la probabilità di falso positivo desiderata, tra 0 e 1 esclusi
+     * @throws IllegalArgumentException se expected non è positivo o fpp non è
+     * tra 0 e 1 */
+    public BloomFilter(long expected, double fpp) {
+        if(expected<=0 || fpp<=0 || fpp>=1)
+            throw new IllegalArgumentException();
+        long m=(long)Math.ceil(-expected*Math.log(fpp)/(Math.log(2)*Math.log(2)));
+        int words=(int)Math.min(Integer.MAX_VALUE,(m+63)/64);
+        bits=new AtomicLongArray(words);
+        size=64L*words;
+        hashes=Math.max(1,(int)Math.round((double)size/expected*Math.log(2)));
+    }
+
+    /** Ritorna false se la stringa non è mai stata aggiunta, true se
+     * probabilmente lo è stata
+     * @param s  una stringa
+     * @return false se s non è stata sicuramente aggiunta */
+    public boolean mightContain(String s) {
+        long fp=FingerprintStore.fingerprint(s);
+        int h1=(int)fp, h2=(int)(fp>>>32);
+        for(int i=0;i<hashes;i++) {
+            long bit=index(h1,h2,i);
+            if((bits.get((int)(bit>>>6))&(1L<<bit))==0)
+                return false;
+        }
+        return true;
+    }
+
+    /** Aggiunge la stringa al filtro
+     * @param s  una stringa
+     * @return true se il filtro è cambiato, cioè se la stringa non era
+     * sicuramente presente */
+    public boolean put(String s) {
+        long fp=FingerprintStore.fingerprint(s);
+        int h1=(int)fp, h2=(int)(fp>>>32);
+        boolean changed=false;
+        for(int i=0;i<hashes;i++) {
+            long bit=index(h1,h2,i);
+            int w=(int)(bit>>>6);
+            long mask=1L<<bit;
+            long old;
+            while(((old=bits.get(w))&mask)==0) {
+                if(bits.compareAndSet(w,old,old|mask)) {
+                    changed=true;
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private long index(int h1, int h2, int i) {
+        //doppio hashing: h1 + i*h2
+        long h=(h1+(long)i*h2)&Long.MAX_VALUE;
+        return h%size;
+    }
+}
@@ -0,0 +1,656 @@
+package wsa.web;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/** Archivio incrementale dello stato di un crawl. Ogni cambiamento (il dominio, lo
+ * stato di un URI, un {@link CrawlerResult}) è aggiunto in append come un record
+ * binario a un file di log, quindi un checkpoint ({@link CrawlJournal#checkpoint()})
+ * costa quanto i record scritti dopo il checkpoint precedente e non quanto l'intero
+ * crawl. I record sono resi persistenti (fsync) a gruppi. I risultati sono invece
+ * scritti in un {@link ResultStore} nella stessa directory, da cui
+ * {@link CrawlJournal#get(URI)} li rilegge singolarmente; nel log resta solo lo
+ * stato LOADED o ERROR del loro URI.
+ * <br>
+ * Quando i log diventano grandi rispetto all'ultimo snapshot, un thread in
+ * background li compatta insieme allo snapshot in un nuovo snapshot, scritto in un
+ * file temporaneo e poi rinominato atomicamente. La compattazione legge solo file
+ * già chiusi, quindi non rallenta né blocca chi scrive. All'apertura lo stato è
+ * ricostruito rileggendo lo snapshot e poi i log successivi.
+ * <br>
+ * Chi aggiunge record non esegue I/O: i record sono codificati e accodati a un
+ * task di scrittura, che li scrive nell'ordine in cui sono stati aggiunti, quindi
+ * ogni checkpoint è uno stato coerente del crawl. Anche i checkpoint sono eseguiti
+ * da quel task, su richiesta e comunque entro 30 secondi se ci sono record non
+ * ancora persistenti. La coda è limitata: se il disco non tiene il passo, chi
+ * aggiunge record attende. Il task di scrittura e la compattazione sono eseguiti da
+ * un executor, proprio o condiviso con altri archivi: non c'è un thread per
+ * archivio e, con l'executor proprio, nessun thread resta attivo quando non ci
+ * sono scritture. I thread sono daemon, quindi non impediscono al programma di
+ * terminare: chi deve sapere che un checkpoint è persistente prima di proseguire
+ * usa {@link CrawlJournal#sync()}.
+ * <br>
+ * Gli URI sono archiviati una volta sola, nel dizionario di un
+ * {@link CrawlerResultCodec}: ogni URI nuovo è definito da un record che precede il
+ * primo record che lo usa, gli altri record contengono solo id. Un URI definito e
+ * senza altri cambiamenti di stato è da scaricare.
+ * <br>
+ * Ogni record è preceduto dalla sua lunghezza e seguito dal suo CRC32: un record
+ * troncato o corrotto, ad esempio perché il processo è terminato durante la
+ * scrittura, termina la rilettura del file che lo contiene. */
+public class CrawlJournal implements Closeable {
+    /** Riceve i record di un archivio nell'ordine in cui sono stati scritti */
+    public interface Visitor {
+        /** Il dominio del crawl */
+        void domain(URI dom);
+        /** Un cambiamento di stato di un URI, TO_LOAD quando l'URI compare per la
+         * prima volta */
+        void state(URI uri, URIStates.State s);
+    }
+
+    private static final int MAGIC=0x57534A33;
+    private static final byte DOMAIN=1, STATE=2, DEFINE=3;
+    //numero di record dopo il quale è fatto comunque un fsync
+    private static final int BATCH=512;
+    //dimensione minima dei log per avviare una compattazione
+    private static final long COMPACT_MIN=4<<20;
+    private static final String SNAPSHOT="journal.snap", LOG="journal-", LOG_EXT=".log";
+    //intervallo massimo tra due checkpoint, come richiesto da SiteCrawler
+    private static final long CHECKPOINT=30_000;
+    //numero massimo di scritture in attesa del task di scrittura
+    private static final int QUEUE=1<<12;
+
+    /** Una scrittura eseguita dal task di scrittura */
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    private final Path dir;
+    //esegue scritture e compattazioni; chiuso da close solo se è proprio
+    private final ScheduledExecutorService io;
+    private final boolean ownIo;
+    private final AtomicBoolean compacting=new AtomicBoolean();
+    private final BlockingQueue<Write> writes=new ArrayBlockingQueue<>(QUEUE);
+    //il task di scrittura è in coda o in esecuzione: uno solo alla volta
+    private final AtomicBoolean draining=new AtomicBoolean();
+    private volatile boolean stopped;
+    //i risultati accodati e non ancora scritti, per impronta
+    private final ConcurrentHashMap<Long,byte[]> unwritten=new ConcurrentHashMap<>();
+    private volatile IOException failure;
+    //usati solo da chi aggiunge record, in mutua esclusione
+    private final CrawlerResultCodec codec;
+    private final List<String> defined=new ArrayList<>();
+    private final ByteArrayOutputStream buf=new ByteArrayOutputStream();
+    private final DataOutputStream rec=new DataOutputStream(buf);
+    private boolean closed;
+    //usati solo dal task di scrittura
+    private final CRC32 crc=new CRC32();
+    private FileOutputStream file;
+    private DataOutputStream out;
+    private int gen, pending;
+    private boolean tickScheduled;
+    private long logBytes;
+    private volatile long snapshotBytes;
+    //letto da get e scritto dal task di scrittura, sincronizzato su se stesso
+    private final ResultStore store;
+
+    private CrawlJournal(Path dir, CrawlerResultCodec codec, int gen, long logBytes, ScheduledExecutorService io) throws IOException {
+        this.dir=dir;
+        this.codec=codec;
+        ownIo=io==null;
+        if(ownIo) {
+            //due thread: una compattazione non ferma le scritture
+            ScheduledThreadPoolExecutor own=new ScheduledThreadPoolExecutor(2,tf->{
+                Thread t=new Thread(tf);
+                t.setDaemon(true);
+                return t;
+            });
+            own.setKeepAliveTime(1,TimeUnit.SECONDS);
+            own.allowCoreThreadTimeOut(true);
+            own.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            io=own;
+        }
+        this.io=io;
+        store=new ResultStore(dir);
+        this.gen=gen;
+        this.logBytes=logBytes;
+        Path snap=dir.resolve(SNAPSHOT);
+        snapshotBytes=Files.exists(snap)?Files.size(snap):0;
+        Files.deleteIfExists(dir.resolve(SNAPSHOT+".tmp"));
+        openLog();
+    }
+
+    /** Crea un nuovo archivio nella directory data, eliminando quello che
+     * eventualmente contiene, e vi scrive il dominio
+     * @param dir  la directory dell'archivio, creata se non esiste
+     * @param dom  il dominio del crawl
+     * @return l'archivio, pronto per aggiungere record
+     * @throws IOException se si verifica un errore di I/O */
+    public static CrawlJournal create(Path dir, URI dom) throws IOException {
+        return create(dir,dom,null);
+    }
+
+    /** Come {@link CrawlJournal#create(Path, URI)}, con scritture e compattazioni
+     * eseguite dall'executor dato, che può essere condiviso da più archivi
+     * @param dir  la directory dell'archivio, creata se non esiste
+     * @param dom  il dominio del crawl
+     * @param io  l'executor o null per uno proprio
+     * @return l'archivio, pronto per aggiungere record
+     * @throws IOException se si verifica un errore di I/O */
+    public static CrawlJournal create(Path dir, URI dom, ScheduledExecutorService io) throws IOException {
+        Files.createDirectories(dir);
+        for(Path p:logs(dir).values())
+            Files.delete(p);
+        Files.deleteIfExists(dir.resolve(SNAPSHOT));
+        ResultStore.delete(dir);
+        CrawlJournal j=new CrawlJournal(dir,new CrawlerResultCodec(),0,0,io);
+        j.domain(dom);
+        j.sync();
+        return j;
+    }
+
+    /** Apre l'archivio nella directory data rileggendo in streaming lo snapshot e i
+     * log successivi. I nuovi record sono aggiunti a un nuovo file di log.
+     * @param dir  la directory dell'archivio
+     * @param v  riceve i record riletti
+     * @return l'archivio, pronto per aggiungere record
+     * @throws IOException se si verifica un errore di I/O o la directory non
+     * contiene un archivio */
+    public static CrawlJournal open(Path dir, Visitor v) throws IOException {
+        return open(dir,v,null);
+    }
+
+    /** Come {@link CrawlJournal#open(Path, Visitor)}, con scritture e
+     * compattazioni eseguite dall'executor dato, che può essere condiviso da più
+     * archivi
+     * @param dir  la directory dell'archivio
+     * @param v  riceve i record riletti
+     * @param io  l'executor o null per uno proprio
+     * @return l'archivio, pronto per aggiungere record
+     * @throws IOException se si verifica un errore di I/O o la directory non
+     * contiene un archivio */
+    public static CrawlJournal open(Path dir, Visitor v, ScheduledExecutorService io) throws IOException {
+        Path snap=dir.resolve(SNAPSHOT);
+        TreeMap<Integer,Path> logs=logs(dir);
+        if(!Files.exists(snap) && logs.isEmpty())
+            throw new FileNotFoundException(snap.toString());
+        CrawlerResultCodec codec=new CrawlerResultCodec();
+        int first=0;
+        if(Files.exists(snap))
+            try(DataInputStream in=input(snap)) {
+                first=header(in,snap);
+                replay(in,codec,v);
+            }
+        long bytes=0;
+        int next=first;
+        for(Map.Entry<Integer,Path> e:logs.tailMap(first).entrySet()) {
+            try(DataInputStream in=input(e.getValue())) {
+                header(in,e.getValue());
+                replay(in,codec,v);
+            }
+            bytes+=Files.size(e.getValue());
+            next=e.getKey()+1;
+        }
+        return new CrawlJournal(dir,codec,next,bytes,io);
+    }
+
+    /** Aggiunge il record del dominio del crawl
+     * @param dom  il dominio
+     * @throws IOException se si verifica un errore di I/O */
+    public synchronized void domain(URI dom) throws IOException {
+        check();
+        rec.writeByte(DOMAIN);
+        CrawlerResultCodec.writeString(rec,dom.toString());
+        append();
+    }
+
+    /** Aggiunge il record di un cambiamento di stato di un URI
+     * @param uri  l'URI
+     * @param s  il nuovo stato
+     * @throws IOException se si verifica un errore di I/O */
+    public synchronized void state(URI uri, URIStates.State s) throws IOException {
+        check();
+        rec.writeByte(STATE);
+        CrawlerResultCodec.writeVarint(rec,codec.intern(uri,defined));
+        rec.writeByte(s.ordinal());
+        append();
+    }
+
+    /** Aggiunge un risultato all'archivio dei risultati e il record del nuovo stato
+     * del suo URI
+     * @param r  il risultato
+     * @throws IOException se si verifica un errore di I/O */
+    public synchronized void result(CrawlerResult r) throws IOException {
+        check();
+        codec.encode(r,rec,defined);
+        byte[] payload=buf.toByteArray();
+        buf.reset();
+        rec.writeByte(STATE);
+        CrawlerResultCodec.writeVarint(rec,codec.id(r.uri));
+        rec.writeByte((r.exc==null?URIStates.State.LOADED:URIStates.State.ERROR).ordinal());
+        append(FingerprintStore.fingerprint(r.uri.toString()),payload);
+    }
+
+    /** Ritorna il risultato archiviato per l'URI dato o null se non c'è. Costa una
+     * ricerca nell'indice dei risultati e una lettura, senza accesso alla rete.
+     * @param uri  un URI
+     * @return il risultato o null
+     * @throws IOException se si verifica un errore di I/O */
+    public synchronized CrawlerResult get(URI uri) throws IOException {
+        if(closed)
+            return null;
+        long fp=FingerprintStore.fingerprint(uri.toString());
+        byte[] payload=unwritten.get(fp);
+        if(payload==null)
+            synchronized(store) {
+                payload=store.get(fp);
+            }
+        if(payload==null)
+            return null;
+        CrawlerResult r;
+        try {
+            r=codec.decode(new DataInputStream(new ByteArrayInputStream(payload)));
+        } catch(IOException e) {
+            //un record scritto dopo l'ultimo checkpoint e perso con il log
+            return null;
+        }
+        //le impronte di due URI diversi possono coincidere
+        return r.uri.equals(uri)?r:null;
+    }
+
+    /** Richiede un checkpoint: il task di scrittura rende persistenti i record
+     * aggiunti finora. Ritorna subito, senza attendere la scrittura.
+     * @return completato quando i record aggiunti finora sono persistenti
+     * @throws IOException se l'archivio è chiuso o una scrittura precedente è
+     * fallita */
+    public synchronized CompletableFuture<Void> checkpoint() throws IOException {
+        check();
+        CompletableFuture<Void> done=new CompletableFuture<>();
+        enqueue(()->{
+            try {
+                force();
+                done.complete(null);
+            } catch(IOException e) {
+                done.completeExceptionally(e);
+                throw e;
+            }
+        });
+        return done;
+    }
+
+    /** Rende persistenti i record aggiunti finora, attendendo la scrittura
+     * @throws IOException se si verifica un errore di I/O */
+    public void sync() throws IOException {
+        try {
+            checkpoint().get();
+        } catch(ExecutionException e) {
+            throw e.getCause() instanceof IOException?(IOException)e.getCause():new IOException(e.getCause());
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /** Scrive i record in attesa, li rende persistenti e chiude l'archivio,
+     * attendendo la fine della scrittura. Un'eventuale compattazione in corso è
+     * completata in background.
+     * @throws IOException se si verifica un errore di I/O */
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed)
+            return;
+        closed=true;
+        CountDownLatch done=new CountDownLatch(1);
+        try {
+            enqueue(()->{
+                try {
+                    force();
+                    out.close();
+                    synchronized(store) {
+                        store.close();
+                    }
+                } catch(IOException e) {
+                    if(failure==null)
+                        failure=e;
+                } finally {
+                    stopped=true;
+                    done.countDown();
+                }
+            });
+            done.await();
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            if(ownIo)
+                io.shutdown();
+        }
+        if(failure!=null)
+            throw failure;
+    }
+
+    private void check() throws IOException {
+        if(closed)
+            throw new IOException("Archivio chiuso");
+        if(failure!=null)
+            throw new IOException("Archivio non aggiornato",failure);
+    }
+
+    /** Accoda una scrittura, attendendo se la coda è piena. Un record aggiunto non
+     * va perso, quindi l'attesa non è interrotta: lo stato di interruzione è
+     * ripristinato dopo. L'attesa termina comunque perché il task di scrittura è
+     * sempre in coda o in esecuzione finché ci sono scritture. */
+    private void enqueue(Write w) {
+        boolean interrupted=false;
+        while(true)
+            try {
+                writes.put(w);
+                break;
+            } catch(InterruptedException e) {
+                interrupted=true;
+            }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        signal();
+    }
+
+    /** Avvia il task di scrittura, se non è già in coda o in esecuzione */
+    private void signal() {
+        if(draining.compareAndSet(false,true))
+            try {
+                io.execute(this::drain);
+            } catch(RejectedExecutionException e) {
+                //executor condiviso già chiuso: le scritture sono eseguite da chi le accoda
+                drain();
+            }
+    }
+
+    /** Accoda le definizioni degli URI nuovi e poi il record in buf, con
+     * l'eventuale risultato da aggiungere all'archivio dei risultati */
+    private void append() throws IOException {
+        append(0,null);
+    }
+
+    private void append(long fp, byte[] result) throws IOException {
+        byte[] record=buf.toByteArray();
+        buf.reset();
+        List<byte[]> frames=new ArrayList<>(defined.size()+1);
+        for(String u:defined) {
+            rec.writeByte(DEFINE);
+            CrawlerResultCodec.writeString(rec,u);
+            frames.add(buf.toByteArray());
+            buf.reset();
+        }
+        defined.clear();
+        frames.add(record);
+        if(result!=null)
+            unwritten.put(fp,result);
+        enqueue(()->{
+            for(byte[] f:frames)
+                frame(f);
+            if(result!=null) {
+                synchronized(store) {
+                    store.put(fp,result);
+                }
+                unwritten.remove(fp,result);
+            }
+            if(++pending>=BATCH)
+                force();
+        });
+    }
+
+    /** Il task di scrittura: esegue le scritture in coda, al più BATCH, poi lascia
+     * l'executor agli altri archivi e torna in coda se ne restano */
+    private void drain() {
+        Write w;
+        for(int n=0;n<BATCH && (w=writes.poll())!=null;n++)
+            try {
+                w.run();
+                //il checkpoint periodico è programmato solo se ci sono record da rendere persistenti
+                if(pending>0 && !tickScheduled && !stopped)
+                    tickScheduled=schedule(this::tick);
+            } catch(IOException e) {
+                if(failure==null)
+                    failure=e;
+            }
+        draining.set(false);
+        if(!writes.isEmpty())
+            signal();
+    }
+
+    /** Accoda il checkpoint periodico, eseguito come ogni scrittura dal task di
+     * scrittura */
+    private void tick() {
+        if(stopped)
+            return;
+        boolean queued=writes.offer(()->{
+            tickScheduled=false;
+            if(pending>0 && !stopped)
+                force();
+        });
+        if(queued)
+            signal();
+        else
+            //la coda è piena e le scritture procedono: si riprova più tardi
+            schedule(this::tick);
+    }
+
+    private boolean schedule(Runnable r) {
+        try {
+            io.schedule(r,CHECKPOINT,TimeUnit.MILLISECONDS);
+            return true;
+        } catch(RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /** Rende persistenti i record scritti. Se i log sono diventati grandi rispetto
+     * all'ultimo snapshot, avvia una compattazione in background. */
+    private void force() throws IOException {
+        out.flush();
+        file.getChannel().force(false);
+        synchronized(store) {
+            store.sync();
+        }
+        pending=0;
+        if(logBytes>Math.max(COMPACT_MIN,snapshotBytes) && compacting.compareAndSet(false,true)) {
+            int upTo=roll();
+            try {
+                io.execute(()->{
+                    try {
+                        compact(upTo);
+                    } catch(IOException e) {
+                        //riportato da check alla prossima modifica dell'archivio
+                        if(failure==null)
+                            failure=e;
+                    } finally {
+                        compacting.set(false);
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                //sarà ritentata al prossimo checkpoint
+                compacting.set(false);
+            }
+        }
+    }
+
+    private void frame(byte[] payload) throws IOException {
+        writeFrame(out,crc,payload,payload.length);
+        logBytes+=payload.length+8;
+    }
+
+    private void openLog() throws IOException {
+        File f=dir.resolve(LOG+gen+LOG_EXT).toFile();
+        boolean fresh=!f.exists() || f.length()==0;
+        file=new FileOutputStream(f,true);
+        out=new DataOutputStream(new BufferedOutputStream(file,1<<16));
+        if(fresh)
+            out.writeInt(MAGIC);
+    }
+
+    /** Chiude il log corrente e ne apre uno nuovo
+     * @return la generazione del nuovo log */
+    private int roll() throws IOException {
+        out.close();
+        gen++;
+        logBytes=0;
+        openLog();
+        return gen;
+    }
+
+    /** Fonde lo snapshot con i log di generazione minore di upTo, che non sono più
+     * scritti, in un nuovo snapshot. Gli altri record sono copiati così come sono,
+     * nello stesso ordine, così gli id del dizionario non cambiano. Degli stati
+     * resta solo l'ultimo di ogni URI. */
+    private void compact(int upTo) throws IOException {
+        Path snap=dir.resolve(SNAPSHOT), tmp=dir.resolve(SNAPSHOT+".tmp");
+        List<Path> sources=new ArrayList<>();
+        if(Files.exists(snap))
+            sources.add(snap);
+        sources.addAll(logs(dir).headMap(upTo).values());
+        //primo passaggio: l'ultimo stato di ogni URI
+        Map<Integer,Byte> states=new LinkedHashMap<>();
+        for(Path p:sources)
+            scan(p,(type,payload)->{
+                if(type==STATE) {
+                    DataInputStream in=new DataInputStream(new ByteArrayInputStream(payload,1,payload.length-1));
+                    states.put(CrawlerResultCodec.readVarint(in),in.readByte());
+                }
+            });
+        //gli stati seguono le definizioni degli URI che usano
+        try(DataOutputStream o=new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp),1<<16))) {
+            o.writeInt(MAGIC);
+            o.writeInt(upTo);
+            CRC32 c=new CRC32();
+            Frame copy=(type,payload)->{
+                if(type!=STATE)
+                    writeFrame(o,c,payload,payload.length);
+            };
+            for(Path p:sources)
+                scan(p,copy);
+            ByteArrayOutputStream b=new ByteArrayOutputStream();
+            DataOutputStream r=new DataOutputStream(b);
+            for(Map.Entry<Integer,Byte> e:states.entrySet()) {
+                r.writeByte(STATE);
+                CrawlerResultCodec.writeVarint(r,e.getKey());
+                r.writeByte(e.getValue());
+                writeFrame(o,c,b.toByteArray(),b.size());
+                b.reset();
+            }
+        }
+        Files.move(tmp,snap,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        snapshotBytes=Files.size(snap);
+        for(Path p:logs(dir).headMap(upTo).values())
+            Files.delete(p);
+    }
+
+    /** Riceve il payload di un record durante una scansione */
+    private interface Frame {
+        void accept(byte type, byte[] payload) throws IOException;
+    }
+
+    private static void scan(Path p, Frame f) throws IOException {
+        try(DataInputStream in=input(p)) {
+            header(in,p);
+            byte[] payload;
+            while((payload=readFrame(in))!=null)
+                f.accept(payload[0],payload);
+        }
+    }
+
+    private static void replay(DataInputStream in, CrawlerResultCodec codec, Visitor v) throws IOException {
+        byte[] payload;
+        while((payload=readFrame(in))!=null) {
+            DataInputStream r=new DataInputStream(new ByteArrayInputStream(payload,1,payload.length-1));
+            switch(payload[0]) {
+                case DEFINE:
+                    v.state(codec.uri(codec.define(CrawlerResultCodec.readString(r))),URIStates.State.TO_LOAD);
+                    break;
+                case DOMAIN:
+                    v.domain(URI.create(CrawlerResultCodec.readString(r)));
+                    break;
+                case STATE:
+                    v.state(codec.uri(CrawlerResultCodec.readVarint(r)),URIStates.State.values()[r.readByte()]);
+                    break;
+                default:
+                    throw new IOException("Record sconosciuto: "+payload[0]);
+            }
+        }
+    }
+
+    /** Legge l'intestazione di un file dell'archivio
+     * @return per lo snapshot, la generazione del primo log non compattato */
+    private static int header(DataInputStream in, Path p) throws IOException {
+        try {
+            if(in.readInt()!=MAGIC)
+                throw new IOException("Archivio non valido: "+p);
+            return p.getFileName().toString().equals(SNAPSHOT)?in.readInt():0;
+        } catch(EOFException e) {
+            //un log vuoto o troncato prima dell'intestazione non contiene record
+            if(p.getFileName().toString().equals(SNAPSHOT))
+                throw new IOException("Archivio non valido: "+p);
+            return 0;
+        }
+    }
+
+    /** Legge il payload del prossimo record o ritorna null se il file è finito o il
+     * record è troncato o corrotto */
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        try {
+            int len=in.readInt();
+            if(len<=0 || len>(1<<30))
+                return null;
+            byte[] payload=new byte[len];
+            in.readFully(payload);
+            CRC32 c=new CRC32();
+            c.update(payload);
+            return in.readInt()==(int)c.getValue()?payload:null;
+        } catch(EOFException e) {
+            return null;
+        }
+    }
+
+    private static void writeFrame(DataOutputStream o, CRC32 c, byte[] payload, int len) throws IOException {
+        c.reset();
+        c.update(payload,0,len);
+        o.writeInt(len);
+        o.write(payload,0,len);
+        o.writeInt((int)c.getValue());
+    }
+
+    private static DataInputStream input(Path p) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(p),1<<16));
+    }
+
+    /** I file di log nella directory, ordinati per generazione */
+    private static TreeMap<Integer,Path> logs(Path dir) throws IOException {
+        TreeMap<Integer,Path> logs=new TreeMap<>();
+        if(Files.isDirectory(dir))
+            try(DirectoryStream<Path> ds=Files.newDirectoryStream(dir,LOG+"*"+LOG_EXT)) {
+                for(Path p:ds) {
+                    String n=p.getFileName().toString();
+                    try {
+                        logs.put(Integer.parseInt(n.substring(LOG.length(),n.length()-LOG_EXT.length())),p);
+                    } catch(NumberFormatException e) {}
+                }
+            }
+        return logs;
+    }
+}
@@ -0,0 +1,18 @@
+package wsa.web;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.function.Predicate;
+
+/** Una factory per Crawler */
+public interface CrawlerFactory {
+    /** Ritorna una nuova istanza di un Crawler che inizia con gli specificati
+     * insiemi di URI
+     * @param loaded  insieme URI scaricati
+     * @param toLoad  insieme URI da scaricare
+     * @param errs  insieme URI con errori
+     * @param pageLink  determina gli URI per i quali i link contenuti nelle
+     *                  relative pagine sono usati per continuare il crawling
+     * @return una nuova istanza di un Crawler */
+    Crawler newInstance(Collection<URI> loaded, Collection<URI> toLoad, Collection<URI> errs, Predicate<URI> pageLink);
+}
@@ -0,0 +1,217 @@
+package wsa.web;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Codifica binaria compatta di {@link CrawlerResult} per gli archivi. Ogni URI
+ * distinto è scritto una sola volta in un dizionario che gli assegna un id
+ * progressivo; un risultato contiene solo id in formato varint. La lista dei link
+ * è scritta come differenze (zigzag) tra id consecutivi, che per i link appena
+ * scoperti sono piccole, perciò un link costa tipicamente uno o due byte. Le
+ * eccezioni sono ridotte al nome della classe e al messaggio.
+ * <br>
+ * Il dizionario è ricostruito rileggendo le definizioni nello stesso ordine in cui
+ * sono state create ({@link CrawlerResultCodec#define(String)}), e ogni URI è
+ * decodificato una volta sola qualunque sia il numero di pagine che lo contengono.
+ * Non è thread-safe. */
+public class CrawlerResultCodec {
+    private static final int LINK_PAGE=1, LINKS=2, ERR_RAW_LINKS=4, EXC=8;
+
+    private final List<URI> uris=new ArrayList<>();
+    //tabella a indirizzamento aperto: impronta dell'URI -> id+1 (0 se vuota)
+    private long[] fps=new long[1<<10];
+    private int[] ids=new int[1<<10];
+
+    /** Ritorna il numero di URI nel dizionario
+     * @return il numero di URI nel dizionario */
+    public int size() {
+        return uris.size();
+    }
+
+    /** Ritorna l'URI con l'id dato
+     * @param id  un id del dizionario
+     * @return l'URI */
+    public URI uri(int id) {
+        return uris.get(id);
+    }
+
+    /** Ritorna l'id di un URI o -1 se non è nel dizionario
+     * @param uri  un URI
+     * @return l'id o -1 */
+    public int id(URI uri) {
+        String s=uri.toString();
+        long fp=FingerprintStore.fingerprint(s);
+        int mask=fps.length-1;
+        for(int i=(int)fp&mask;ids[i]!=0;i=(i+1)&mask)
+            if(fps[i]==fp && uris.get(ids[i]-1).toString().equals(s))
+                return ids[i]-1;
+        return -1;
+    }
+
+    /** Aggiunge un URI al dizionario con il prossimo id
+     * @param uri  l'URI, che non deve essere già nel dizionario
+     * @return l'id assegnato */
+    public int define(String uri) {
+        if(2*(uris.size()+1)>fps.length)
+            rehash(fps.length*2);
+        uris.add(URI.create(uri));
+        insert(FingerprintStore.fingerprint(uri),uris.size());
+        return uris.size()-1;
+    }
+
+    /** Ritorna l'id di un URI, aggiungendolo al dizionario se non c'è
+     * @param uri  un URI
+     * @param defined  a cui sono aggiunti gli URI nuovi, nell'ordine degli id
+     * @return l'id */
+    public int intern(URI uri, List<String> defined) {
+        int id=id(uri);
+        if(id<0) {
+            defined.add(uri.toString());
+            id=define(uri.toString());
+        }
+        return id;
+    }
+
+    /** Scrive un risultato. Gli URI che non erano nel dizionario vi sono aggiunti e
+     * devono essere archiviati prima del risultato.
+     * @param r  il risultato
+     * @param out  dove è scritto
+     * @param defined  a cui sono aggiunti gli URI nuovi, nell'ordine degli id
+     * @throws IOException se si verifica un errore di I/O */
+    public void encode(CrawlerResult r, DataOutput out, List<String> defined) throws IOException {
+        int id=intern(r.uri,defined);
+        writeVarint(out,id);
+        out.writeByte((r.linkPage?LINK_PAGE:0)|(r.links!=null?LINKS:0)|(r.errRawLinks!=null?ERR_RAW_LINKS:0)|(r.exc!=null?EXC:0));
+        if(r.links!=null) {
+            writeVarint(out,r.links.size());
+            int prev=id;
+            for(URI u:r.links) {
+                int l=intern(u,defined);
+                writeVarint(out,(l-prev)<<1^(l-prev)>>31);
+                prev=l;
+            }
+        }
+        if(r.errRawLinks!=null) {
+            writeVarint(out,r.errRawLinks.size());
+            for(String s:r.errRawLinks)
+                writeString(out,s);
+        }
+        if(r.exc!=null) {
+            writeString(out,r.exc.getClass().getName());
+            writeString(out,r.exc.getMessage());
+        }
+    }
+
+    /** Legge un risultato scritto da {@link CrawlerResultCodec#encode}
+     * @param in  da dove è letto
+     * @return il risultato
+     * @throws IOException se si verifica un errore di I/O o un id non è nel
+     * dizionario */
+    public CrawlerResult decode(DataInput in) throws IOException {
+        int id=readVarint(in);
+        URI uri=lookup(id);
+        int flags=in.readByte();
+        List<URI> links=null;
+        List<String> errRawLinks=null;
+        Exception exc=null;
+        if((flags&LINKS)!=0) {
+            int n=readVarint(in);
+            links=new ArrayList<>(n);
+            for(int i=0, prev=id;i<n;i++) {
+                int z=readVarint(in);
+                prev+=z>>>1^-(z&1);
+                links.add(lookup(prev));
+            }
+        }
+        if((flags&ERR_RAW_LINKS)!=0) {
+            int n=readVarint(in);
+            errRawLinks=new ArrayList<>(n);
+            for(int i=0;i<n;i++)
+                errRawLinks.add(readString(in));
+        }
+        if((flags&EXC)!=0)
+            exc=exception(readString(in),readString(in));
+        return new CrawlerResult(uri,(flags&LINK_PAGE)!=0,links,errRawLinks,exc);
+    }
+
+    /** Ricostruisce un'eccezione archiviata come nome della classe e messaggio. Se
+     * la classe non è disponibile o non ha un costruttore con il solo messaggio,
+     * ritorna una Exception con il nome della classe nel messaggio. */
+    static Exception exception(String cls, String msg) {
+        try {
+            Class<?> c=Class.forName(cls,false,CrawlerResultCodec.class.getClassLoader());
+            if(Exception.class.isAssignableFrom(c))
+                return (Exception)c.getConstructor(String.class).newInstance(msg);
+        } catch(ReflectiveOperationException|LinkageError|RuntimeException e) {}
+        return new Exception(msg==null?cls:cls+": "+msg);
+    }
+
+    /** Scrive un intero non negativo in 1-5 byte, 7 bit per byte */
+    public static void writeVarint(DataOutput out, int v) throws IOException {
+        while((v&~0x7F)!=0) {
+            out.writeByte((v&0x7F)|0x80);
+            v>>>=7;
+        }
+        out.writeByte(v);
+    }
+
+    public static int readVarint(DataInput in) throws IOException {
+        int v=0;
+        for(int shift=0;shift<35;shift+=7) {
+            int b=in.readByte();
+            v|=(b&0x7F)<<shift;
+            if((b&0x80)==0)
+                return v;
+        }
+        throw new IOException("Varint non valido");
+    }
+
+    /** Scrive una stringa, anche null, come lunghezza+1 in varint e byte UTF-8 */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if(s==null) {
+            writeVarint(out,0);
+            return;
+        }
+        byte[] b=s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out,b.length+1);
+        out.write(b);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int len=readVarint(in)-1;
+        if(len<0)
+            return null;
+        byte[] b=new byte[len];
+        in.readFully(b);
+        return new String(b,StandardCharsets.UTF_8);
+    }
+
+    private URI lookup(int id) throws IOException {
+        if(id<0 || id>=uris.size())
+            throw new IOException("URI non nel dizionario: "+id);
+        return uris.get(id);
+    }
+
+    private void insert(long fp, int id) {
+        int mask=fps.length-1, i=(int)fp&mask;
+        while(ids[i]!=0)
+            i=(i+1)&mask;
+        fps[i]=fp;
+        ids[i]=id;
+    }
+
+    private void rehash(int cap) {
+        long[] oldFps=fps;
+        int[] oldIds=ids;
+        fps=new long[cap];
+        ids=new int[cap];
+        for(int i=0;i<oldIds.length;i++)
+            if(oldIds[i]!=0)
+                insert(oldFps[i],oldIds[i]);
+    }
+}
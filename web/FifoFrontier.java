@@ -0,0 +1,35 @@
+package wsa.web;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Frontiera FIFO: gli URI sono scaricati nell'ordine in cui sono stati aggiunti,
+ * quindi una visita in ampiezza. È la frontiera di default di {@link SimpleCrawler}. */
+public class FifoFrontier implements Frontier {
+    private final ConcurrentLinkedQueue<Entry> queue=new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size=new AtomicInteger();
+
+    @Override
+    public void offer(Entry e) {
+        queue.add(e);
+        size.incrementAndGet();
+    }
+
+    @Override
+    public Entry poll() {
+        Entry e=queue.poll();
+        if(e!=null)
+            size.decrementAndGet();
+        return e;
+    }
+
+    @Override
+    public int size() {
+        return Math.max(0,size.get());
+    }
+
+    @Override
+    public void clear() {
+        while(poll()!=null);
+    }
+}
@@ -0,0 +1,316 @@
+package wsa.web;
+
+import java.lang.ref.Cleaner;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** Archivio compatto di URI con uno stato, pensato per gli URI già visti da un
+ * crawl molto grande. Ogni URI è identificato dall'impronta a 64 bit della sua
+ * stringa, memorizzata in una tabella hash ad indirizzamento aperto di long (senza
+ * boxing). Per poter comunque elencare gli URI, la loro stringa è accodata in UTF-8
+ * a un log di blocchi di byte. Tabella e log possono stare fuori dallo heap. Un URI
+ * occupa circa 32 byte di tabella più la sua stringa, contro le diverse centinaia
+ * di un {@link URI} in un HashSet.
+ * <br>
+ * Due URI sono considerati uguali se hanno la stessa stringa, come per
+ * {@link URI#equals(Object)} tranne che per le maiuscole di schema, host e sequenze
+ * di escape, che un canonicalizzatore come {@link URICanonicalizer} elimina. Due URI
+ * distinti con la stessa impronta sono considerati uguali, cosa che accade con
+ * probabilità trascurabile.
+ * <br>
+ * Le voci degli URI rimossi restano nel log finché i loro byte non superano quelli
+ * delle voci valide: a quel punto il log è compattato, ma solo se nessun iteratore
+ * è in uso, dato che un iteratore legge il log per posizione. Un iteratore è in uso
+ * finché non è esaurito o non è più raggiungibile. I metodi sono thread-safe. */
+public class FingerprintStore {
+    private static final int CHUNK=1<<20;
+    //la capacità massima della tabella nello heap (un LongBuffer è indicizzato da int)
+    private static final int MAX_CAPACITY=1<<30;
+    private static final Cleaner CLEANER=Cleaner.create();
+
+    private final boolean offHeap;
+    //chiave: impronta (0 = vuoto); valore: (posizione nel log << 8) | (stato + 1)
+    private LongBuffer keys, vals;
+    private int size, mask;
+    private final List<ByteBuffer> log=new ArrayList<>();
+    private final int[] counts;
+    //byte del log occupati dalle voci valide e da quelle degli URI rimossi
+    private long liveBytes, deadBytes;
+    private int openIterators;
+
+    /** Crea un archivio vuoto
+     * @param states  il numero di stati distinti (al più 255)
+     * @param offHeap  se tabella e log devono stare fuori dallo heap */
+    public FingerprintStore(int states, boolean offHeap) {
+        if(states<=0 || states>255)
+            throw new IllegalArgumentException();
+        this.offHeap=offHeap;
+        counts=new int[states];
+        alloc(1<<10);
+    }
+
+    /** Ritorna l'impronta a 64 bit della stringa dell'URI, mai 0
+     * @param uri  un URI
+     * @return l'impronta */
+    public static long fingerprint(URI uri) {
+        return fingerprint(uri.toString());
+    }
+
+    /** Ritorna l'impronta a 64 bit di una stringa, mai 0
+     * @param s  una stringa
+     * @return l'impronta */
+    public static long fingerprint(String s) {
+        //FNV-1a seguito dal finalizzatore di MurmurHash3 per distribuire i bit
+        long h=0xcbf29ce484222325L;
+        for(int i=0;i<s.length();i++) {
+            h^=s.charAt(i);
+            h*=0x100000001b3L;
+        }
+        h^=h>>>33;
+        h*=0xff51afd7ed558ccdL;
+        h^=h>>>33;
+        h*=0xc4ceb9fe1a85ec53L;
+        h^=h>>>33;
+        return h==0?1:h;
+    }
+
+    /** Ritorna lo stato dell'URI o -1 se non è presente
+     * @param uri  un URI
+     * @return lo stato o -1 */
+    public synchronized int get(URI uri) {
+        int i=find(fingerprint(uri));
+        return i<0?-1:state(vals.get(i));
+    }
+
+    /** Imposta lo stato dell'URI, aggiungendolo se non è presente
+     * @param uri  un URI
+     * @param state  il nuovo stato
+     * @return lo stato precedente o -1 se non era presente
+     * @throws IllegalStateException se la tabella non può più crescere */
+    public synchronized int put(URI uri, int state) {
+        long fp=fingerprint(uri);
+        int i=find(fp);
+        int old=-1;
+        if(i>=0) {
+            long val=vals.get(i);
+            old=state(val);
+            if(old==state)
+                return old;
+            counts[old]--;
+            //cambia solo lo stato, la voce nel log resta la stessa
+            vals.put(i,(val&~0xffL)|(state+1));
+        }
+        else {
+            if(2*(size+1)>keys.capacity()) {
+                if(2L*keys.capacity()>maxCapacity())
+                    throw new IllegalStateException("Troppi URI");
+                alloc(2*keys.capacity());
+            }
+            i=slot(fp);
+            keys.put(i,fp);
+            size++;
+            vals.put(i,(append(uri.toString())<<8)|(state+1));
+        }
+        counts[state]++;
+        return old;
+    }
+
+    /** Rimuove l'URI se è nello stato dato
+     * @param uri  un URI
+     * @param state  lo stato atteso
+     * @return true se è stato rimosso */
+    public synchronized boolean remove(URI uri, int state) {
+        int i=find(fingerprint(uri));
+        if(i<0 || state(vals.get(i))!=state)
+            return false;
+        long at=vals.get(i)>>>8;
+        long bytes=4+log.get((int)(at>>>32)).getInt((int)at);
+        liveBytes-=bytes;
+        deadBytes+=bytes;
+        counts[state]--;
+        size--;
+        //cancellazione con spostamento all'indietro, nessuna lapide
+        int gap=i;
+        for(int j=(i+1)&mask;keys.get(j)!=0;j=(j+1)&mask) {
+            int home=(int)(keys.get(j)^(keys.get(j)>>>32))&mask;
+            if(((j-home)&mask)>=((j-gap)&mask)) {
+                keys.put(gap,keys.get(j));
+                vals.put(gap,vals.get(j));
+                gap=j;
+            }
+        }
+        keys.put(gap,0);
+        vals.put(gap,0);
+        if(deadBytes>Math.max(CHUNK,liveBytes) && openIterators==0)
+            compact();
+        return true;
+    }
+
+    /** Ritorna il numero di URI nello stato dato
+     * @param state  uno stato
+     * @return il numero di URI */
+    public synchronized int count(int state) {
+        return counts[state];
+    }
+
+    /** Ritorna un iteratore sugli URI che al momento della lettura sono nello
+     * stato dato. Non lancia mai ConcurrentModificationException.
+     * @param state  uno stato
+     * @return l'iteratore */
+    public Iterator<URI> iterator(int state) {
+        synchronized (this) {
+            openIterators++;
+        }
+        return new Iterator<URI>() {
+            private int chunk=0, pos=0;
+            private URI next;
+            private boolean done;
+            //chiude l'iteratore quando è esaurito o raccolto; l'azione non deve
+            //riferire l'iteratore, altrimenti non sarebbe mai raccolto
+            private final Cleaner.Cleanable open=CLEANER.register(this,FingerprintStore.this::closeIterator);
+
+            @Override
+            public boolean hasNext() {
+                while(next==null) {
+                    if(done)
+                        return false;
+                    String s;
+                    long at;
+                    synchronized (FingerprintStore.this) {
+                        if(chunk>=log.size() || (pos>=log.get(chunk).position() && chunk==log.size()-1)) {
+                            //esaurito: il log può di nuovo essere compattato
+                            done=true;
+                            open.clean();
+                            return false;
+                        }
+                        ByteBuffer b=log.get(chunk);
+                        if(pos>=b.position()) {
+                            chunk++;
+                            pos=0;
+                            continue;
+                        }
+                        at=((long)chunk<<32)|pos;
+                        int len=b.getInt(pos);
+                        byte[] bytes=new byte[len];
+                        for(int k=0;k<len;k++)
+                            bytes[k]=b.get(pos+4+k);
+                        pos+=4+len;
+                        s=new String(bytes,StandardCharsets.UTF_8);
+                        //vale solo se è la voce corrente dell'URI nel log
+                        int i=find(fingerprint(s));
+                        if(i<0 || vals.get(i)!=((at<<8)|(state+1)))
+                            continue;
+                    }
+                    next=URI.create(s);
+                }
+                return true;
+            }
+
+            @Override
+            public URI next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                URI r=next;
+                next=null;
+                return r;
+            }
+        };
+    }
+
+    private synchronized void closeIterator() {
+        openIterators--;
+    }
+
+    private static int state(long val) {
+        return (int)(val&0xff)-1;
+    }
+
+    private int find(long fp) {
+        for(int i=(int)(fp^(fp>>>32))&mask;;i=(i+1)&mask) {
+            long k=keys.get(i);
+            if(k==fp)
+                return i;
+            if(k==0)
+                return -1;
+        }
+    }
+
+    private int slot(long fp) {
+        int i=(int)(fp^(fp>>>32))&mask;
+        while(keys.get(i)!=0)
+            i=(i+1)&mask;
+        return i;
+    }
+
+    private void alloc(int capacity) {
+        LongBuffer oldKeys=keys, oldVals=vals;
+        keys=longs(capacity);
+        vals=longs(capacity);
+        mask=capacity-1;
+        if(oldKeys!=null)
+            for(int i=0;i<oldKeys.capacity();i++) {
+                long k=oldKeys.get(i);
+                if(k!=0) {
+                    int j=slot(k);
+                    keys.put(j,k);
+                    vals.put(j,oldVals.get(i));
+                }
+            }
+    }
+
+    private int maxCapacity() {
+        //un buffer diretto ha al più Integer.MAX_VALUE byte, 8 per slot
+        return offHeap?(int)Math.min(MAX_CAPACITY,Integer.MAX_VALUE/8L):MAX_CAPACITY;
+    }
+
+    private LongBuffer longs(int n) {
+        long bytes=8L*n;
+        if(bytes>Integer.MAX_VALUE)
+            throw new IllegalStateException("Tabella troppo grande");
+        return offHeap?ByteBuffer.allocateDirect((int)bytes).asLongBuffer():LongBuffer.allocate(n);
+    }
+
+    /** Riscrive il log con le sole voci valide, con il lock tenuto e nessun
+     * iteratore in uso */
+    private void compact() {
+        List<ByteBuffer> old=new ArrayList<>(log);
+        log.clear();
+        liveBytes=deadBytes=0;
+        for(int i=0;i<keys.capacity();i++) {
+            if(keys.get(i)==0)
+                continue;
+            long val=vals.get(i), at=val>>>8;
+            ByteBuffer b=old.get((int)(at>>>32));
+            int pos=(int)at, len=b.getInt(pos);
+            byte[] bytes=new byte[len];
+            for(int k=0;k<len;k++)
+                bytes[k]=b.get(pos+4+k);
+            vals.put(i,(append(bytes)<<8)|(val&0xff));
+        }
+    }
+
+    /** Accoda la stringa al log e ritorna la sua posizione */
+    private long append(String s) {
+        return append(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long append(byte[] bytes) {
+        liveBytes+=4+bytes.length;
+        ByteBuffer b=log.isEmpty()?null:log.get(log.size()-1);
+        if(b==null || b.remaining()<4+bytes.length) {
+            int cap=Math.max(CHUNK,4+bytes.length);
+            b=offHeap?ByteBuffer.allocateDirect(cap):ByteBuffer.allocate(cap);
+            log.add(b);
+        }
+        long at=((long)(log.size()-1)<<32)|b.position();
+        b.putInt(bytes.length);
+        b.put(bytes);
+        return at;
+    }
+}
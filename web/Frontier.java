@@ -0,0 +1,43 @@
+package wsa.web;
+
+import java.net.URI;
+
+/** La frontiera di un Crawler: gli URI che devono essere ancora scaricati,
+ * nell'ordine in cui saranno scaricati. Ogni URI ha la sua profondità, cioè la
+ * distanza in numero di link dal seed da cui è stato raggiunto. Le implementazioni
+ * devono permettere a più thread di invocare i metodi contemporaneamente. */
+public interface Frontier {
+    /** Un URI della frontiera con la sua profondità */
+    class Entry {
+        /** L'URI da scaricare */
+        public final URI uri;
+        /** La distanza dal seed, 0 per i seed */
+        public final int depth;
+
+        public Entry(URI u, int d) {
+            uri = u;
+            depth = d;
+        }
+    }
+
+    /** Aggiunge un URI alla frontiera. Non controlla i duplicati, lo fa il Crawler.
+     * @param e  l'URI con la sua profondità */
+    void offer(Entry e);
+
+    /** Toglie e ritorna il prossimo URI da scaricare o null se la frontiera è vuota
+     * @return il prossimo URI o null */
+    Entry poll();
+
+    /** Ritorna il numero di URI nella frontiera
+     * @return il numero di URI */
+    int size();
+
+    /** Ritorna true se la frontiera è vuota
+     * @return true se è vuota */
+    default boolean isEmpty() {
+        return size()==0;
+    }
+
+    /** Svuota la frontiera */
+    void clear();
+}
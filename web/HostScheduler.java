@@ -0,0 +1,251 @@
+package wsa.web;
+
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Un AsyncLoader che si interpone tra chi sottomette i download e un altro
+ * AsyncLoader per essere cortese con i server: gli URL sono accodati per host, per
+ * ogni host ci sono al più maxPerHost download in corso e tra l'avvio di due
+ * download dello stesso host passano almeno minDelay millisecondi. Gli host con
+ * download in attesa sono serviti a turno (round robin), così un host con molte
+ * pagine non affama gli altri. Gli URL senza host (file://, ecc.) non sono
+ * soggetti ai limiti.
+ * <br>
+ * Per usarlo con i Crawler si imposta ad esempio con
+ * {@code WebFactory.setAsyncLoaderFactory(() -> new HostScheduler(new SimpleAsyncLoader(), 2, 500))}. */
+public class HostScheduler implements AsyncLoader{
+    private final AsyncLoader loader;
+    private final int maxPerHost;
+    private final long minDelay;
+    private final Map<String,Host> hosts;
+    //host con download in attesa, nell'ordine in cui saranno serviti
+    private final Deque<Host> ring;
+    private final ScheduledExecutorService timer;
+    private ExecutorService waiters;
+    private ScheduledFuture<?> wakeup;
+    //numero di host oltre il quale sono rimossi quelli inattivi
+    private int sweepAt=64;
+    //evitano che dispatch sia rieseguito ricorsivamente da un download già completato
+    private boolean dispatching, again;
+    private volatile boolean shutdown;
+
+    /** Lo stato di un host, acceduto solo in blocchi sincronizzati sullo scheduler */
+    private static class Host {
+        final String name;
+        final ArrayDeque<Request> queue=new ArrayDeque<>();
+        int running=0;
+        long nextStart=0;
+        boolean inRing=false;
+
+        Host(String n) {
+            name = n;
+        }
+    }
+
+    /** Un download in attesa */
+    private static class Request {
+        final URL url;
+        final CompletableFuture<LoadResult> res;
+
+        Request(URL u, CompletableFuture<LoadResult> r) {
+            url = u;
+            res = r;
+        }
+    }
+
+    /** Crea uno scheduler davanti al loader dato.
+     * @param loader  il loader asincrono che esegue i download
+     * @param maxPerHost  numero massimo di download contemporanei per host
+     * @param minDelay  millisecondi minimi tra l'avvio di due download dello stesso host
+     * @throws IllegalArgumentException se maxPerHost non è positivo o minDelay è negativo */
+    public HostScheduler(AsyncLoader loader, int maxPerHost, long minDelay){
+        if(loader==null || maxPerHost<=0 || minDelay<0)
+            throw new IllegalArgumentException();
+        this.loader=loader;
+        this.maxPerHost=maxPerHost;
+        this.minDelay=TimeUnit.MILLISECONDS.toNanos(minDelay);
+        hosts=new HashMap<>();
+        ring=new ArrayDeque<>();
+        timer=Executors.newSingleThreadScheduledExecutor(tf->{
+            Thread t = new Thread(tf);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Sottomette il downloading della pagina dello specificato URL e ritorna
+     * un Future per ottenere il risultato in modo asincrono.
+     *
+     * @param url un URL di una pagina web
+     * @return Future per ottenere il risultato in modo asincrono
+     * @throws IllegalStateException se il loader è chiuso
+     */
+    @Override
+    public Future<LoadResult> submit(URL url) throws IllegalStateException{
+        if(shutdown)
+            throw new IllegalStateException();
+        String name=url.getHost()==null?"":url.getHost().toLowerCase();
+        if(name.isEmpty())
+            return loader.submit(url);
+        CompletableFuture<LoadResult> res=new CompletableFuture<>();
+        int port=url.getPort()==-1?url.getDefaultPort():url.getPort();
+        synchronized (this) {
+            if(hosts.size()>=sweepAt) {
+                long now=System.nanoTime();
+                hosts.values().removeIf(h->idle(h,now));
+                sweepAt=Math.max(64,2*hosts.size());
+            }
+            Host h=hosts.computeIfAbsent(name+":"+port,Host::new);
+            h.queue.add(new Request(url,res));
+            if(!h.inRing) {
+                h.inRing=true;
+                ring.add(h);
+            }
+            dispatch();
+        }
+        return res;
+    }
+
+    /** Avvia tutti i download consentiti dai limiti, uno per host a ogni giro, e
+     * se qualche host è in attesa solo per il ritardo minimo programma un nuovo
+     * giro per quando il primo di essi sarà pronto. */
+    private synchronized void dispatch(){
+        if(shutdown)
+            return;
+        if(dispatching) {
+            again=true;
+            return;
+        }
+        dispatching=true;
+        try {
+            do {
+                again=false;
+                dispatchRound();
+            } while(again);
+        } finally {
+            dispatching=false;
+        }
+    }
+
+    private void dispatchRound(){
+        long now=System.nanoTime(), next=Long.MAX_VALUE;
+        boolean progress=true;
+        while(progress && !ring.isEmpty()) {
+            progress=false;
+            for(int i=ring.size();i>0;i--) {
+                Host h=ring.poll();
+                //download annullati prima di essere avviati, ad esempio da un Crawler sospeso
+                while(!h.queue.isEmpty() && h.queue.peek().res.isDone())
+                    h.queue.poll();
+                if(!h.queue.isEmpty() && h.running<maxPerHost && now-h.nextStart>=0) {
+                    start(h,h.queue.poll());
+                    progress=true;
+                }
+                if(h.queue.isEmpty()) {
+                    h.inRing=false;
+                    if(idle(h,now))
+                        hosts.remove(h.name,h);
+                }
+                else
+                    ring.add(h);
+            }
+        }
+        for(Host h:ring)
+            if(h.running<maxPerHost)
+                next=Math.min(next,h.nextStart-now);
+        if(next!=Long.MAX_VALUE && (wakeup==null || wakeup.isDone() || wakeup.getDelay(TimeUnit.NANOSECONDS)>next)) {
+            if(wakeup!=null)
+                wakeup.cancel(false);
+            wakeup=timer.schedule(this::dispatch,next,TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void start(Host h, Request r){
+        h.running++;
+        h.nextStart=System.nanoTime()+minDelay;
+        Future<LoadResult> f;
+        try {
+            f=loader.submit(r.url);
+        } catch (RuntimeException e) {
+            h.running--;
+            r.res.completeExceptionally(e);
+            return;
+        }
+        CompletableFuture<LoadResult> cf;
+        if(f instanceof CompletableFuture)
+            cf=(CompletableFuture<LoadResult>)f;
+        else
+            //il loader non notifica il completamento, serve un thread che attenda
+            cf=CompletableFuture.supplyAsync(()->{
+                try {
+                    return f.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new CompletionException(e);
+                }
+            },waiters());
+        r.res.whenComplete((res,e)->{
+            if(r.res.isCancelled())
+                f.cancel(true);
+        });
+        cf.whenComplete((res,e)->{
+            if(e!=null)
+                r.res.completeExceptionally(e);
+            else
+                r.res.complete(res);
+            synchronized (this) {
+                h.running--;
+                if(!h.inRing && idle(h,System.nanoTime()))
+                    hosts.remove(h.name,h);
+            }
+            dispatch();
+        });
+    }
+
+    /** Ritorna true se l'host non ha download in corso o in attesa e il ritardo
+     * minimo dall'ultimo avvio è trascorso, così dimenticarlo non viola i limiti */
+    private static boolean idle(Host h, long now){
+        return h.running==0 && h.queue.isEmpty() && now-h.nextStart>=0;
+    }
+
+    private synchronized ExecutorService waiters(){
+        if(waiters==null)
+            waiters=Executors.newCachedThreadPool(tf->{
+                Thread t = new Thread(tf);
+                t.setDaemon(true);
+                return t;
+            });
+        return waiters;
+    }
+
+    /**
+     * Chiude il loader e rilascia tutte le risorse. Dopo di ciò non può più
+     * essere usato.
+     */
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            shutdown=true;
+            for(Host h:ring)
+                for(Request r:h.queue)
+                    r.res.cancel(false);
+            ring.clear();
+            hosts.clear();
+            if(waiters!=null)
+                waiters.shutdown();
+        }
+        timer.shutdownNow();
+        loader.shutdown();
+    }
+
+    /**
+     * Ritorna true se è chiuso.
+     *
+     * @return true se è chiuso
+     */
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+}
@@ -0,0 +1,191 @@
+package wsa.web;
+
+import wsa.web.html.HTMLParser;
+import wsa.web.html.ParsedHTML;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.*;
+
+/** Un loader asincrono che per http e https usa I/O non bloccante tramite
+ * {@link java.net.http.HttpClient}: una pagina in download non occupa alcun thread,
+ * quindi possono esserci migliaia di richieste in corso con pochi thread. Il
+ * parsing è fatto con {@link wsa.web.html.HTMLParser} su un pool di dimensione
+ * fissa e gli altri schemi (file://, ecc.) sono scaricati da uno
+ * {@link StreamLoader} sul pool di I/O. Il numero di richieste contemporaneamente
+ * in corso è limitato, così la memoria occupata dalle pagine ricevute resta
+ * limitata; le richieste in eccesso attendono in coda senza occupare thread.
+ * <br>
+ * Non usa i {@link Loader} di {@link WebFactory#getLoader()}, quindi per usarlo
+ * con i Crawler si imposta con
+ * {@code WebFactory.setAsyncLoaderFactory(HttpAsyncLoader::new)}. */
+public class HttpAsyncLoader implements AsyncLoader{
+    /** Numero di default di richieste contemporaneamente in corso */
+    public static final int MAX_IN_FLIGHT=256;
+
+    private final HttpClient client;
+    private final ExecutorService io;
+    private final ExecutorService parsers;
+    private final Semaphore inFlight;
+    private final ConcurrentLinkedQueue<Request> waiting;
+    private final StreamLoader fallback;
+    private volatile boolean shutdown;
+
+    public HttpAsyncLoader(){
+        this(MAX_IN_FLIGHT);
+    }
+
+    /** Crea un loader asincrono con il dato numero massimo di richieste
+     * contemporaneamente in corso.
+     * @param maxInFlight  numero massimo di richieste in corso
+     * @throws IllegalArgumentException se maxInFlight non è positivo */
+    public HttpAsyncLoader(int maxInFlight){
+        if(maxInFlight<=0)
+            throw new IllegalArgumentException();
+        int cpu=Runtime.getRuntime().availableProcessors();
+        ThreadFactory daemon=tf->{
+            Thread t = new Thread(tf);
+            t.setDaemon(true);
+            return t;
+        };
+        io=Executors.newFixedThreadPool(Math.max(2,Math.min(cpu,32)),daemon);
+        parsers=Executors.newFixedThreadPool(Math.min(cpu,64),daemon);
+        client=HttpClient.newBuilder()
+                .executor(io)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(5000))
+                .build();
+        inFlight=new Semaphore(maxInFlight);
+        waiting=new ConcurrentLinkedQueue<>();
+        fallback=new StreamLoader();
+    }
+
+    /**
+     * Sottomette il downloading della pagina dello specificato URL e ritorna
+     * un Future per ottenere il risultato in modo asincrono.
+     *
+     * @param url un URL di una pagina web
+     * @return Future per ottenere il risultato in modo asincrono
+     * @throws IllegalStateException se il loader è chiuso
+     */
+    @Override
+    public Future<LoadResult> submit(URL url) throws IllegalStateException{
+        if(shutdown)
+            throw new IllegalStateException();
+        CompletableFuture<LoadResult> res=new CompletableFuture<>();
+        waiting.add(new Request(url,res));
+        schedule();
+        return res;
+    }
+
+    /** Avvia le richieste in coda finché ci sono permessi disponibili. È invocato
+     * sia quando si accoda una richiesta sia quando una termina, quindi nessuna
+     * richiesta resta in coda con un permesso libero. */
+    private void schedule(){
+        while(!waiting.isEmpty() && inFlight.tryAcquire()){
+            Request r=waiting.poll();
+            if(r!=null)
+                launch(r.url,r.res);
+            else
+                inFlight.release();
+        }
+    }
+
+    private void launch(URL url, CompletableFuture<LoadResult> res){
+        CompletableFuture<LoadResult> load;
+        try {
+            String scheme=url.getProtocol();
+            if(scheme.equals("http") || scheme.equals("https")) {
+                HttpRequest req=HttpRequest.newBuilder(url.toURI())
+                        .header("User-Agent","Mozilla/5.0")
+                        .header("Accept", "text/html;q=1.0,*;q=0")
+                        .header("Accept-Encoding", "identity;q=1.0,*;q=0")
+                        .timeout(Duration.ofMillis(10000))
+                        .GET().build();
+                load=client.sendAsync(req,HttpResponse.BodyHandlers.ofByteArray())
+                        .thenApplyAsync(r->parse(url,r),parsers);
+            }
+            else
+                load=CompletableFuture.supplyAsync(()->fallback.load(url),io);
+        } catch (Exception e) {
+            load=CompletableFuture.completedFuture(new LoadResult(url,null,e));
+        }
+        load.whenComplete((r,e)->{
+            inFlight.release();
+            if(r!=null)
+                res.complete(r);
+            else
+                res.complete(new LoadResult(url,null,unwrap(e)));
+            if(!shutdown)
+                schedule();
+        });
+    }
+
+    /** Una richiesta in attesa di un permesso */
+    private static class Request {
+        final URL url;
+        final CompletableFuture<LoadResult> res;
+
+        Request(URL u, CompletableFuture<LoadResult> r) {
+            url = u;
+            res = r;
+        }
+    }
+
+    private static LoadResult parse(URL url, HttpResponse<byte[]> resp){
+        if(resp.statusCode()>=400)
+            return new LoadResult(url,null,new IOException("HTTP "+resp.statusCode()+" per "+url));
+        Charset cs=StandardCharsets.UTF_8;
+        for(String p:resp.headers().firstValue("Content-Type").orElse("").split(";")) {
+            p=p.trim();
+            if(p.regionMatches(true,0,"charset=",0,8))
+                try {
+                    cs=Charset.forName(p.substring(8).replace("\"","").trim());
+                } catch (Exception e) {}
+        }
+        try(Reader in=new InputStreamReader(new ByteArrayInputStream(resp.body()),cs)){
+            return new LoadResult(url,new ParsedHTML(HTMLParser.parse(in)),null);
+        } catch (IOException e) {
+            return new LoadResult(url,null,e);
+        }
+    }
+
+    private static Exception unwrap(Throwable e){
+        while(e instanceof CompletionException && e.getCause()!=null)
+            e=e.getCause();
+        return e instanceof Exception?(Exception)e:new Exception(e);
+    }
+
+    /**
+     * Chiude il loader e rilascia tutte le risorse. Dopo di ciò non può più
+     * essere usato.
+     */
+    @Override
+    public void shutdown() {
+        shutdown=true;
+        Request r;
+        while((r=waiting.poll())!=null)
+            r.res.cancel(false);
+        io.shutdown();
+        parsers.shutdown();
+    }
+
+    /**
+     * Ritorna true se è chiuso.
+     *
+     * @return true se è chiuso
+     */
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+}
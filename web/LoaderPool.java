@@ -0,0 +1,73 @@
+package wsa.web;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** Un pool limitato di {@link Loader}. Al più size Loader sono in uso
+ * contemporaneamente: {@link LoaderPool#checkout(long, TimeUnit)} attende, senza
+ * polling, che un Loader sia restituito. I Loader sono creati solo quando servono
+ * tramite {@link WebFactory#getLoader()} e un Loader che ha fallito può essere
+ * scartato con {@link LoaderPool#evict(Loader)}, il suo posto sarà preso da un
+ * nuovo Loader. */
+public class LoaderPool {
+    private final int size;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Loader> idle;
+
+    /** Crea un pool vuoto che può contenere fino a size Loader
+     * @param size  numero massimo di Loader
+     * @throws IllegalArgumentException se size non è positivo */
+    public LoaderPool(int size) {
+        if(size<=0)
+            throw new IllegalArgumentException();
+        this.size=size;
+        permits=new Semaphore(size,true);
+        idle=new ConcurrentLinkedDeque<>();
+    }
+
+    /** Prende un Loader dal pool, attendendo al più il tempo specificato che se ne
+     * liberi uno. Se nessun Loader già creato è libero ma il pool non è pieno, ne
+     * crea uno nuovo. Il Loader va restituito con {@link LoaderPool#checkin(Loader)}
+     * o scartato con {@link LoaderPool#evict(Loader)}.
+     * @param timeout  il tempo massimo di attesa
+     * @param unit  l'unità di misura di timeout
+     * @return un Loader o null se il tempo di attesa è scaduto
+     * @throws InterruptedException se il thread è interrotto durante l'attesa */
+    public Loader checkout(long timeout, TimeUnit unit) throws InterruptedException {
+        if(!permits.tryAcquire(timeout,unit))
+            return null;
+        Loader loader=idle.pollFirst();
+        if(loader==null)
+            try {
+                loader=WebFactory.getLoader();
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        return loader;
+    }
+
+    /** Restituisce al pool un Loader preso con {@link LoaderPool#checkout(long, TimeUnit)}
+     * e risveglia uno dei thread in attesa.
+     * @param loader  il Loader da restituire */
+    public void checkin(Loader loader) {
+        //il Loader usato più di recente è il primo ad essere ripreso
+        idle.addFirst(loader);
+        permits.release();
+    }
+
+    /** Scarta un Loader preso con {@link LoaderPool#checkout(long, TimeUnit)} che
+     * non è più utilizzabile. Il posto che occupava è liberato e il prossimo
+     * checkout creerà un nuovo Loader.
+     * @param loader  il Loader da scartare */
+    public void evict(Loader loader) {
+        permits.release();
+    }
+
+    /** Ritorna il numero massimo di Loader del pool
+     * @return il numero massimo di Loader */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,246 @@
+package wsa.web;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/** Esegue in parallelo il crawling di più domini. Ogni dominio ha il suo
+ * {@link SimpleSiteCrawler}, con il proprio stato e il proprio archivio in una
+ * sottodirectory della directory data, ma tutti scaricano le pagine con un unico
+ * loader condiviso: un pool di thread limitato davanti al quale un
+ * {@link HostScheduler} serve a turno gli host con download in attesa. Così il
+ * numero di thread di download non dipende dal numero di domini e un dominio con
+ * molte pagine non affama gli altri; inoltre ogni dominio ha al più
+ * 2*maxPerHost download in corso.
+ * <br>
+ * Anche il resto del lavoro dei domini è svolto da pool condivisi, ognuno di al
+ * più {@link MultiSiteCrawler#SHARED_THREADS} thread: uno esegue a turno i passi
+ * delle pipeline dei Crawler, uno scrive gli archivi e uno consegna i risultati ai
+ * sottoscrittori. Il numero totale di thread quindi non dipende dal numero di
+ * domini e non supera {@link MultiSiteCrawler#MAX_THREADS}. I thread dei pool
+ * condivisi terminano quando non c'è lavoro, ad esempio durante la sospensione.
+ * Nessun task dei pool attende un sottoscrittore: un passo di una pipeline
+ * archivia i risultati, attendendo al più il disco, e li lascia al pool di
+ * consegna, che riprova più tardi invece di attendere un sottoscrittore pieno.
+ * Così un dominio con un sottoscrittore lento non ferma gli altri domini. Solo un
+ * sottoscrittore che si blocca in onNext occupa un thread del pool di consegna
+ * finché non ritorna.
+ * <br>
+ * I risultati di ogni dominio sono archiviati e possono essere letti con
+ * {@link SiteCrawler#get(URI)} o ricevuti sottoscrivendo il suo SiteCrawler. Il
+ * get() di un dominio ritorna solo i risultati più recenti: se nessuno li legge,
+ * quelli in più sono scartati e il crawling del dominio non si ferma.
+ * <br>
+ * Alla creazione sono riaperti gli archivi dei domini già presenti nella
+ * directory, che riprendono da dove erano stati sospesi alla prossima
+ * invocazione di start. */
+public class MultiSiteCrawler {
+    private final Path dir;
+    private final AsyncLoader loader;
+    //pipeline dei Crawler, archivi e consegna ai sottoscrittori
+    private final ScheduledThreadPoolExecutor pipelines, io, delivery;
+    private final int window;
+    private final Map<URI,SimpleSiteCrawler> sites=new LinkedHashMap<>();
+    private boolean running, cancelled;
+
+    /** Il loader condiviso visto da un singolo Crawler: chiuderlo chiude solo
+     * questa vista, così la cancellazione di un dominio non ferma gli altri */
+    private static class Lease implements AsyncLoader {
+        private final AsyncLoader loader;
+        private volatile boolean shutdown;
+
+        Lease(AsyncLoader l) {
+            loader = l;
+        }
+
+        @Override
+        public Future<LoadResult> submit(URL url) {
+            if(isShutdown())
+                throw new IllegalStateException();
+            return loader.submit(url);
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown=true;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown || loader.isShutdown();
+        }
+    }
+
+    /** Numero massimo di thread di ognuno dei tre pool condivisi dai domini */
+    public static final int SHARED_THREADS=Math.min(8,Math.max(2,Runtime.getRuntime().availableProcessors()));
+    /** Numero massimo di thread usati da un MultiSiteCrawler, qualunque sia il numero
+     * di domini: i thread di download, quelli dei pool condivisi e quello dello
+     * {@link HostScheduler} */
+    public static final int MAX_THREADS=200;
+
+    /** Crea un MultiSiteCrawler con 50 thread di download, al più 2 download
+     * contemporanei per host e almeno 200 millisecondi tra due download dello
+     * stesso host
+     * @param dir  la directory degli archivi dei domini, creata se non esiste
+     * @throws IOException se si verifica un errore di I/O */
+    public MultiSiteCrawler(Path dir) throws IOException {
+        this(dir,50,2,200);
+    }
+
+    /** Crea un MultiSiteCrawler
+     * @param dir  la directory degli archivi dei domini, creata se non esiste
+     * @param threads  numero di thread di download condivisi da tutti i domini
+     * @param maxPerHost  numero massimo di download contemporanei per host
+     * @param minDelay  millisecondi minimi tra l'avvio di due download dello stesso host
+     * @throws IllegalArgumentException se dir è null, threads non è positivo o
+     * supera MAX_THREADS-3*SHARED_THREADS-1, maxPerHost non è positivo o minDelay
+     * è negativo
+     * @throws IOException se si verifica un errore di I/O */
+    public MultiSiteCrawler(Path dir, int threads, int maxPerHost, long minDelay) throws IOException {
+        if(dir==null || threads<=0 || threads>MAX_THREADS-3*SHARED_THREADS-1)
+            throw new IllegalArgumentException();
+        loader=new HostScheduler(new SimpleAsyncLoader(threads,threads,false),maxPerHost,minDelay);
+        pipelines=pool();
+        io=pool();
+        delivery=pool();
+        this.dir=Files.createDirectories(dir);
+        window=2*maxPerHost;
+        try(Stream<Path> subdirs=Files.list(this.dir)) {
+            for(Path p:(Iterable<Path>)subdirs::iterator) {
+                if(!Files.isDirectory(p))
+                    continue;
+                try {
+                    SimpleSiteCrawler s=site(null,p);
+                    sites.put(s.getDomain(),s);
+                } catch(IllegalArgumentException e) {
+                    //non è l'archivio di un dominio
+                }
+            }
+        }
+    }
+
+    /** Aggiunge un dominio. Se il dominio ha già un archivio nella directory, il
+     * crawling riprende dal suo stato archiviato. Se il MultiSiteCrawler è in
+     * esecuzione, il crawling del dominio inizia subito.
+     * @param dom  un dominio
+     * @return il SiteCrawler del dominio
+     * @throws IllegalArgumentException se dom non è un dominio
+     * @throws IllegalStateException se il MultiSiteCrawler è cancellato
+     * @throws IOException se si verifica un errore di I/O */
+    public synchronized SiteCrawler add(URI dom) throws IOException {
+        if(cancelled)
+            throw new IllegalStateException();
+        if(dom==null || !SimpleSiteCrawler.checkDomain(dom))
+            throw new IllegalArgumentException();
+        SimpleSiteCrawler s=sites.get(dom);
+        if(s==null) {
+            Path p=dir.resolve(name(dom));
+            s=Files.isDirectory(p)?site(null,p):site(dom,Files.createDirectories(p));
+            sites.put(dom,s);
+        }
+        if(running)
+            s.start();
+        return s;
+    }
+
+    /** Ritorna il SiteCrawler di un dominio o null se il dominio non è stato aggiunto
+     * @param dom  un dominio
+     * @return il SiteCrawler del dominio o null */
+    public synchronized SiteCrawler get(URI dom) {
+        return sites.get(dom);
+    }
+
+    /** Ritorna i SiteCrawler dei domini, nell'ordine in cui sono stati aggiunti
+     * @return una mappa non modificabile dai domini ai loro SiteCrawler */
+    public synchronized Map<URI,SiteCrawler> getSites() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(sites));
+    }
+
+    /** Inizia o riprende il crawling di tutti i domini
+     * @throws IllegalStateException se il MultiSiteCrawler è cancellato */
+    public synchronized void start() {
+        if(cancelled)
+            throw new IllegalStateException();
+        running=true;
+        for(SimpleSiteCrawler s:sites.values())
+            if(!s.isCancelled())
+                s.start();
+    }
+
+    /** Sospende il crawling di tutti i domini e ne archivia lo stato
+     * @throws IllegalStateException se il MultiSiteCrawler è cancellato */
+    public synchronized void suspend() {
+        if(cancelled)
+            throw new IllegalStateException();
+        running=false;
+        for(SimpleSiteCrawler s:sites.values())
+            if(!s.isCancelled())
+                s.suspend();
+    }
+
+    /** Cancella tutti i SiteCrawler e chiude il loader condiviso. Dopo questa
+     * invocazione il MultiSiteCrawler non può più essere usato. */
+    public synchronized void cancel() {
+        if(cancelled)
+            return;
+        running=false;
+        cancelled=true;
+        for(SimpleSiteCrawler s:sites.values())
+            if(!s.isCancelled())
+                s.cancel();
+        loader.shutdown();
+        pipelines.shutdown();
+        io.shutdown();
+        delivery.shutdown();
+    }
+
+    /** Ritorna true se il MultiSiteCrawler è in esecuzione
+     * @return true se è in esecuzione */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /** Ritorna true se il MultiSiteCrawler è stato cancellato
+     * @return true se è stato cancellato */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    private SimpleSiteCrawler site(URI dom, Path p) throws IOException {
+        return new SimpleSiteCrawler(dom,p,(loaded,toLoad,errs,pageLink)->
+                new SimpleCrawler(loaded,toLoad,errs,pageLink,window,new URIStates(),new Lease(loader),pipelines,delivery),
+                new Lease(loader),io,delivery);
+    }
+
+    /** Crea un pool condiviso di al più SHARED_THREADS thread, che terminano dopo
+     * un secondo senza lavoro */
+    private static ScheduledThreadPoolExecutor pool() {
+        ScheduledThreadPoolExecutor p=new ScheduledThreadPoolExecutor(SHARED_THREADS,tf->{
+            Thread t=new Thread(tf);
+            t.setDaemon(true);
+            return t;
+        });
+        p.setKeepAliveTime(1,TimeUnit.SECONDS);
+        p.allowCoreThreadTimeOut(true);
+        p.setRemoveOnCancelPolicy(true);
+        p.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return p;
+    }
+
+    /** Il nome della sottodirectory dell'archivio di un dominio: l'host, per
+     * leggibilità, e l'impronta del dominio, che distingue i domini dello stesso
+     * host con path diversi */
+    private static String name(URI dom) {
+        String host=dom.getHost()==null?"":dom.getHost().replaceAll("[^A-Za-z0-9.-]","_");
+        return host+"-"+Long.toHexString(FingerprintStore.fingerprint(dom.toString()));
+    }
+}
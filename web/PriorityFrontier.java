@@ -0,0 +1,65 @@
+package wsa.web;
+
+import java.net.URI;
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleBiFunction;
+
+/** Frontiera ordinata per priorità: è scaricato per primo l'URI con il punteggio
+ * più alto, calcolato da una funzione dell'URI e della sua profondità quando l'URI
+ * è aggiunto. A parità di punteggio vale l'ordine di inserimento. Senza funzione
+ * di punteggio gli URI meno profondi vengono prima, così le pagine vicine ai seed
+ * non restano dietro a lunghe catene di paginazione. La funzione può anche
+ * esprimere, ad esempio, la scadenza di un nuovo download (punteggio = -scadenza). */
+public class PriorityFrontier implements Frontier {
+    private final ToDoubleBiFunction<URI,Integer> score;
+    private final PriorityBlockingQueue<Scored> queue;
+    private final AtomicLong seq=new AtomicLong();
+
+    private static class Scored {
+        final Entry entry;
+        final double score;
+        final long seq;
+
+        Scored(Entry e, double s, long n) {
+            entry = e;
+            score = s;
+            seq = n;
+        }
+    }
+
+    /** Crea una frontiera che dà precedenza agli URI meno profondi */
+    public PriorityFrontier() {
+        this((u,d)->-d);
+    }
+
+    /** Crea una frontiera ordinata con la funzione di punteggio data
+     * @param score  funzione dell'URI e della sua profondità, punteggi più alti
+     *               sono scaricati prima */
+    public PriorityFrontier(ToDoubleBiFunction<URI,Integer> score) {
+        this.score=score;
+        queue=new PriorityBlockingQueue<>(64,Comparator.<Scored>comparingDouble(s->-s.score).thenComparingLong(s->s.seq));
+    }
+
+    @Override
+    public void offer(Entry e) {
+        queue.add(new Scored(e,score.applyAsDouble(e.uri,e.depth),seq.getAndIncrement()));
+    }
+
+    @Override
+    public Entry poll() {
+        Scored s=queue.poll();
+        return s==null?null:s.entry;
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public void clear() {
+        queue.clear();
+    }
+}
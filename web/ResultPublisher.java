@@ -0,0 +1,180 @@
+package wsa.web;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Consegna i risultati di un Crawler ai sottoscrittori appena sono prodotti o, se
+ * non ce ne sono, li accoda in una {@link ResultQueue} per get. Chi consegna non
+ * attende mai i sottoscrittori: i risultati passano per un buffer di al più
+ * {@link SimpleCrawler#RESULTS} risultati, svuotato da un task dell'executor. Ogni
+ * sottoscrittore ha a sua volta un buffer limitato ({@link Flow#defaultBufferSize()}):
+ * se è pieno, il task non occupa un thread ad attenderlo ma riprova poco dopo, e un
+ * risultato che attende da più di {@link SimpleCrawler#DELIVERY_TIMEOUT} secondi
+ * è consegnato solo ai sottoscrittori che hanno spazio. Anche i risultati che non
+ * stanno nel buffer sono persi per i sottoscrittori e contati
+ * ({@link ResultPublisher#dropped()}). I sottoscrittori sono serviti da thread
+ * propri e non dal pool comune, dove un sottoscrittore che si blocca toglierebbe
+ * thread al resto del programma. */
+class ResultPublisher {
+    //millisecondi tra due tentativi di consegna a un sottoscrittore pieno
+    private static final long RETRY=10;
+
+    //null se l'executor è condiviso e quindi non va chiuso
+    private final ExecutorService own;
+    private final Executor executor;
+    private final SubmissionPublisher<CrawlerResult> publisher;
+    private volatile ResultQueue queue;
+    //i risultati in attesa di essere consegnati ai sottoscrittori, con il loro arrivo
+    private final ArrayDeque<Pending> pending=new ArrayDeque<>();
+    //il task di consegna è in coda o in esecuzione: uno solo alla volta
+    private final AtomicBoolean flushing=new AtomicBoolean();
+    private long dropped;
+
+    /** Un risultato in attesa con l'istante in cui è arrivato */
+    private static class Pending {
+        final CrawlerResult result;
+        final long time=System.nanoTime();
+
+        Pending(CrawlerResult r) {
+            result=r;
+        }
+    }
+
+    /** Crea un publisher che serve i sottoscrittori con l'executor dato o, se è
+     * null, con un pool di thread proprio
+     * @param queue  la coda dei risultati in attesa di get
+     * @param executor  l'executor dei sottoscrittori o null */
+    ResultPublisher(ResultQueue queue, Executor executor) {
+        this.queue=queue;
+        own=executor==null?Executors.newCachedThreadPool(tf->{
+            Thread t = new Thread(tf);
+            t.setDaemon(true);
+            return t;
+        }):null;
+        this.executor=executor!=null?executor:own;
+        publisher=new SubmissionPublisher<>(this.executor,Flow.defaultBufferSize());
+    }
+
+    /** Consegna un risultato ai sottoscrittori o, se non ce ne sono, lo accoda
+     * secondo la politica della coda. Non attende i sottoscrittori.
+     * @param r  il risultato */
+    void deliver(CrawlerResult r) {
+        if(!publisher.hasSubscribers()) {
+            queue.put(r);
+            return;
+        }
+        synchronized(pending) {
+            if(pending.size()>=SimpleCrawler.RESULTS) {
+                dropped++;
+                return;
+            }
+            pending.add(new Pending(r));
+        }
+        flush();
+    }
+
+    /** Avvia il task di consegna, se non è già in coda o in esecuzione */
+    private void flush() {
+        if(flushing.compareAndSet(false,true))
+            try {
+                executor.execute(this::drain);
+            } catch(RejectedExecutionException e) {
+                //l'executor condiviso è stato chiuso
+                flushing.set(false);
+            }
+    }
+
+    /** Il task di consegna: passa i risultati in attesa ai sottoscrittori finché
+     * hanno spazio, poi si riprogramma se qualcuno è pieno */
+    private void drain() {
+        long timeout=TimeUnit.SECONDS.toNanos(SimpleCrawler.DELIVERY_TIMEOUT);
+        boolean retry=false;
+        while(true) {
+            Pending p;
+            synchronized(pending) {
+                p=pending.peek();
+            }
+            if(p==null)
+                break;
+            CrawlerResult r=p.result;
+            if(!publisher.hasSubscribers())
+                queue.put(r);
+            else if(System.nanoTime()-p.time<timeout && publisher.estimateMaximumLag()>=publisher.getMaxBufferCapacity()) {
+                retry=true;
+                break;
+            }
+            else if(publisher.offer(r,(s,x)->false)<0)
+                synchronized(pending) {
+                    dropped++;
+                }
+            synchronized(pending) {
+                //close può averlo già tolto
+                if(pending.peek()==p)
+                    pending.poll();
+            }
+        }
+        flushing.set(false);
+        if(retry)
+            try {
+                CompletableFuture.delayedExecutor(RETRY,TimeUnit.MILLISECONDS,executor).execute(this::flush);
+            } catch(RejectedExecutionException e) {
+                //l'executor condiviso è stato chiuso
+            }
+        else
+            synchronized(pending) {
+                if(!pending.isEmpty())
+                    flush();
+            }
+    }
+
+    void subscribe(Flow.Subscriber<? super CrawlerResult> s) {
+        publisher.subscribe(s);
+    }
+
+    /** Ritorna il numero di risultati che almeno un sottoscrittore non ha ricevuto
+     * perché il suo buffer o quello del publisher erano pieni
+     * @return il numero di risultati persi dai sottoscrittori */
+    long dropped() {
+        synchronized(pending) {
+            return dropped;
+        }
+    }
+
+    /** Ritorna la coda dei risultati in attesa di get */
+    ResultQueue queue() {
+        return queue;
+    }
+
+    /** Sostituisce la coda dei risultati, trasferendo nella nuova quelli della
+     * coda corrente */
+    void setQueue(ResultQueue q) {
+        ResultQueue old=queue;
+        CrawlerResult r;
+        while((r=old.poll())!=null)
+            q.put(r);
+        old.clear();
+        queue=q;
+    }
+
+    /** Invia onComplete ai sottoscrittori e svuota la coda. I risultati in attesa
+     * sono consegnati solo ai sottoscrittori che hanno spazio. */
+    void close() {
+        synchronized(pending) {
+            Pending p;
+            while((p=pending.poll())!=null)
+                publisher.offer(p.result,(s,x)->false);
+        }
+        publisher.close();
+        if(own!=null)
+            own.shutdown();
+        queue.clear();
+    }
+}
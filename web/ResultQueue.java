@@ -0,0 +1,258 @@
+package wsa.web;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/** Coda FIFO limitata dei risultati di un Crawler in attesa di essere letti. In
+ * memoria ci sono al più capacity risultati; quando la coda è piena il risultato
+ * da aggiungere è gestito secondo la politica scelta:
+ * <ul>
+ *     <li>{@link Overflow#BLOCK}: chi aggiunge attende che si liberi spazio, quindi
+ *     il crawling procede alla velocità di chi legge i risultati</li>
+ *     <li>{@link Overflow#DROP}: il risultato è scartato e contato
+ *     ({@link ResultQueue#dropped()})</li>
+ *     <li>{@link Overflow#SPILL}: il risultato è accodato a file di segmento in una
+ *     directory locale e riletto in ordine quando la parte in memoria si svuota.
+ *     I risultati riletti sono codificati come negli archivi
+ *     ({@link CrawlerResultCodec}), quindi le loro eccezioni conservano solo la
+ *     classe e il messaggio</li>
+ * </ul>
+ * In ogni caso la memoria occupata non dipende dalla velocità di chi legge. Gli
+ * errori di I/O sono lanciati come {@link UncheckedIOException}. */
+public class ResultQueue {
+    /** La politica per i risultati aggiunti a una coda piena */
+    public enum Overflow { BLOCK, DROP, SPILL }
+
+    private static final int SEGMENT_RESULTS=1<<12;
+
+    private final int capacity;
+    private final Overflow policy;
+    private final ArrayDeque<CrawlerResult> head=new ArrayDeque<>();
+    private final SpillSegments<CrawlerResult> spill;
+    private long dropped;
+
+    /** I segmenti dei risultati, ognuno con il proprio dizionario degli URI */
+    private static class Segments extends SpillSegments<CrawlerResult> {
+        //dizionari degli URI dei segmenti in scrittura e in lettura
+        private CrawlerResultCodec writeCodec, readCodec;
+
+        Segments(Path dir) {
+            super(dir,"results",SEGMENT_RESULTS);
+        }
+
+        @Override
+        void writing() {
+            writeCodec=new CrawlerResultCodec();
+        }
+
+        @Override
+        void reading() {
+            readCodec=new CrawlerResultCodec();
+        }
+
+        /** Scrive un risultato preceduto dagli URI che aggiunge al dizionario del
+         * segmento */
+        @Override
+        void write(DataOutputStream o, CrawlerResult r) throws IOException {
+            List<String> defined=new ArrayList<>();
+            ByteArrayOutputStream payload=new ByteArrayOutputStream();
+            writeCodec.encode(r,new DataOutputStream(payload),defined);
+            CrawlerResultCodec.writeVarint(o,defined.size());
+            for(String u:defined)
+                CrawlerResultCodec.writeString(o,u);
+            payload.writeTo(o);
+        }
+
+        @Override
+        CrawlerResult read(DataInputStream i) throws IOException {
+            for(int n=CrawlerResultCodec.readVarint(i);n>0;n--)
+                readCodec.define(CrawlerResultCodec.readString(i));
+            return readCodec.decode(i);
+        }
+    }
+
+    /** Crea una coda che, con la politica SPILL, scrive i segmenti in una
+     * directory temporanea creata alla prima necessità
+     * @param capacity  numero massimo di risultati in memoria
+     * @param policy  la politica per i risultati aggiunti a una coda piena
+     * @throws IllegalArgumentException se capacity non è positivo */
+    public ResultQueue(int capacity, Overflow policy) {
+        this(capacity,policy,null);
+    }
+
+    /** Crea una coda che, con la politica SPILL, scrive i segmenti nella directory
+     * data
+     * @param capacity  numero massimo di risultati in memoria
+     * @param policy  la politica per i risultati aggiunti a una coda piena
+     * @param dir  la directory dei segmenti, creata se non esiste, o null per una
+     *             directory temporanea
+     * @throws IllegalArgumentException se capacity non è positivo */
+    public ResultQueue(int capacity, Overflow policy, Path dir) {
+        if(capacity<=0 || policy==null)
+            throw new IllegalArgumentException();
+        this.capacity=capacity;
+        this.policy=policy;
+        spill=new Segments(dir);
+    }
+
+    /** Aggiunge un risultato secondo la politica della coda. Con la politica BLOCK,
+     * se il thread è interrotto mentre attende, il risultato è aggiunto comunque
+     * per non perderlo e lo stato di interruzione è ripristinato.
+     * @param r  il risultato
+     * @return false se il risultato è stato scartato */
+    public synchronized boolean put(CrawlerResult r) {
+        if(spill.size()==0 && head.size()<capacity) {
+            head.add(r);
+            notifyAll();
+            return true;
+        }
+        switch(policy) {
+            case DROP:
+                dropped++;
+                return false;
+            case BLOCK:
+                try {
+                    while(head.size()>=capacity)
+                        wait();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                head.add(r);
+                break;
+            default:
+                spill.append(r);
+        }
+        notifyAll();
+        return true;
+    }
+
+    /** Ritorna il prossimo risultato, attendendo al più il tempo dato
+     * @param timeout  il tempo massimo di attesa
+     * @param unit  l'unità di timeout
+     * @return il prossimo risultato o null se non è arrivato in tempo
+     * @throws InterruptedException se il thread è interrotto mentre attende */
+    public synchronized CrawlerResult poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long end=System.nanoTime()+unit.toNanos(timeout);
+        while(size()==0) {
+            long left=end-System.nanoTime();
+            if(left<=0)
+                return null;
+            TimeUnit.NANOSECONDS.timedWait(this,left);
+        }
+        return poll();
+    }
+
+    /** Ritorna il prossimo risultato o null se la coda è vuota
+     * @return il prossimo risultato o null */
+    public synchronized CrawlerResult poll() {
+        if(head.isEmpty())
+            refill();
+        CrawlerResult r=head.poll();
+        if(r!=null)
+            notifyAll();
+        return r;
+    }
+
+    /** Trasferisce nella collezione data fino a max risultati, nell'ordine della
+     * coda, attendendo al più il tempo dato che ne arrivi almeno uno. I risultati
+     * sono trasferiti con una sola acquisizione del lock della coda.
+     * @param c  la collezione in cui aggiungere i risultati
+     * @param max  il numero massimo di risultati da trasferire
+     * @param timeout  il tempo massimo di attesa del primo risultato
+     * @param unit  l'unità di timeout
+     * @return il numero di risultati trasferiti
+     * @throws InterruptedException se il thread è interrotto mentre attende */
+    public synchronized int drainTo(Collection<? super CrawlerResult> c, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        long end=System.nanoTime()+unit.toNanos(timeout);
+        while(size()==0) {
+            long left=end-System.nanoTime();
+            if(left<=0)
+                return 0;
+            TimeUnit.NANOSECONDS.timedWait(this,left);
+        }
+        return drainTo(c,max);
+    }
+
+    /** Trasferisce nella collezione data fino a max risultati, nell'ordine della
+     * coda, attendendo al più il tempo dato che ne arrivi almeno uno, ma solo
+     * finché running è vero: altrimenti trasferisce solo i risultati già in coda.
+     * Serve al get a lotti di un Crawler.
+     * @param c  la collezione in cui aggiungere i risultati
+     * @param max  il numero massimo di risultati da trasferire
+     * @param timeout  il tempo massimo di attesa del primo risultato
+     * @param running  vero finché il Crawler è in esecuzione, controllato a brevi
+     *                 intervalli
+     * @return il numero di risultati trasferiti, 0 se il thread è interrotto
+     * mentre attende, nel qual caso lo stato di interruzione è ripristinato */
+    public int drainTo(Collection<? super CrawlerResult> c, int max, Duration timeout, BooleanSupplier running) {
+        long end=System.nanoTime()+timeout.toNanos();
+        try {
+            //a intervalli brevi per accorgersi di una sospensione
+            while(true) {
+                boolean on=running.getAsBoolean();
+                long left=end-System.nanoTime();
+                long wait=on?Math.min(Math.max(left,0),TimeUnit.MILLISECONDS.toNanos(100)):0;
+                int n=drainTo(c,max,wait,TimeUnit.NANOSECONDS);
+                if(n>0 || !on || left<=0)
+                    return n;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    /** Trasferisce nella collezione data fino a max risultati, nell'ordine della
+     * coda, senza attendere
+     * @param c  la collezione in cui aggiungere i risultati
+     * @param max  il numero massimo di risultati da trasferire
+     * @return il numero di risultati trasferiti */
+    public synchronized int drainTo(Collection<? super CrawlerResult> c, int max) {
+        int n=0;
+        while(n<max) {
+            if(head.isEmpty())
+                refill();
+            CrawlerResult r=head.poll();
+            if(r==null)
+                break;
+            c.add(r);
+            n++;
+        }
+        if(n>0)
+            notifyAll();
+        return n;
+    }
+
+    /** Ritorna il numero di risultati in coda, in memoria e su disco
+     * @return il numero di risultati in coda */
+    public synchronized int size() {
+        return head.size()+spill.size();
+    }
+
+    /** Ritorna il numero di risultati scartati perché la coda era piena
+     * @return il numero di risultati scartati */
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    /** Svuota la coda ed elimina gli eventuali segmenti su disco */
+    public synchronized void clear() {
+        head.clear();
+        spill.clear();
+        notifyAll();
+    }
+
+    /** Rilegge dal disco fino a capacity risultati, nell'ordine in cui sono stati
+     * scritti */
+    private void refill() {
+        while(head.size()<capacity && spill.size()>0)
+            head.add(spill.next());
+    }
+}
@@ -0,0 +1,270 @@
+package wsa.web;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/** Archivio ad accesso diretto di record binari identificati da un'impronta a 64
+ * bit. I record sono aggiunti in append a un file di dati e un indice a
+ * indirizzamento aperto, mappato in memoria, associa a ogni impronta la posizione
+ * del suo ultimo record. La lettura di un record costa quindi una ricerca
+ * nell'indice e una lettura dal file di dati, qualunque sia il numero di record.
+ * <br>
+ * L'indice registra fino a quale posizione del file di dati è aggiornato: se il
+ * processo termina prima che l'indice sia reso persistente, all'apertura i record
+ * successivi sono reindicizzati e un eventuale record troncato è eliminato. Non è
+ * thread-safe. */
+public class ResultStore implements Closeable {
+    private static final int MAGIC=0x57535231;
+    //intestazione: magic, riservato, numero di record, lunghezza dei dati indicizzati
+    private static final int HEADER=24, SLOT=16;
+    private static final String DATA="results.dat", INDEX="results.idx";
+
+    private final Path dir;
+    private final FileChannel data;
+    private final DataOutputStream out;
+    private final CRC32 crc=new CRC32();
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int slots;
+    private long count, length, flushed;
+
+    /** Apre l'archivio nella directory data, creandolo se non esiste
+     * @param dir  la directory dell'archivio
+     * @throws IOException se si verifica un errore di I/O */
+    public ResultStore(Path dir) throws IOException {
+        this.dir=dir;
+        data=FileChannel.open(dir.resolve(DATA),StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE);
+        Path idx=dir.resolve(INDEX);
+        long indexed=0;
+        if(Files.exists(idx) && Files.size(idx)>HEADER) {
+            map(idx,(int)((Files.size(idx)-HEADER)/SLOT));
+            if(index.getInt(0)==MAGIC) {
+                count=index.getLong(8);
+                indexed=Math.min(index.getLong(16),data.size());
+            }
+            else
+                clear();
+        }
+        else
+            map(idx,1<<12);
+        length=recover(indexed);
+        flushed=length;
+        data.truncate(length);
+        //gli slot scritti prima della terminazione per record mai arrivati su disco
+        //puntano oltre i dati validi, dove saranno aggiunti record nuovi
+        dropBeyond(length);
+        data.position(length);
+        out=new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(data),1<<16));
+    }
+
+    /** Elimina l'archivio nella directory data, se c'è
+     * @param dir  la directory dell'archivio
+     * @throws IOException se si verifica un errore di I/O */
+    public static void delete(Path dir) throws IOException {
+        Files.deleteIfExists(dir.resolve(DATA));
+        Files.deleteIfExists(dir.resolve(INDEX));
+    }
+
+    /** Aggiunge un record, che sostituisce quello con la stessa impronta
+     * @param fp  l'impronta, diversa da 0
+     * @param payload  il contenuto del record
+     * @throws IOException se si verifica un errore di I/O */
+    public void put(long fp, byte[] payload) throws IOException {
+        long pos=length;
+        byte[] record=ByteBuffer.allocate(payload.length+8).putLong(fp).put(payload).array();
+        crc.reset();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int)crc.getValue());
+        length+=record.length+8;
+        index(fp,pos);
+    }
+
+    /** Ritorna il contenuto del record con l'impronta data o null
+     * @param fp  l'impronta
+     * @return il contenuto del record o null
+     * @throws IOException se si verifica un errore di I/O */
+    public byte[] get(long fp) throws IOException {
+        int mask=slots-1;
+        for(int i=(int)fp&mask;;i=(i+1)&mask) {
+            long pos=index.getLong(HEADER+i*SLOT+8);
+            if(pos==0)
+                return null;
+            if(index.getLong(HEADER+i*SLOT)==fp)
+                return read(pos-1,fp);
+        }
+    }
+
+    /** Ritorna il numero di record indicizzati
+     * @return il numero di record */
+    public long size() {
+        return count;
+    }
+
+    /** Rende persistenti i record aggiunti e l'indice
+     * @throws IOException se si verifica un errore di I/O */
+    public void sync() throws IOException {
+        out.flush();
+        flushed=length;
+        data.force(false);
+        index.putLong(16,length);
+        index.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        out.close();
+        indexChannel.close();
+    }
+
+    /** Legge il contenuto del record in posizione pos, o ritorna null se lì non
+     * c'è un record valido con l'impronta data */
+    private byte[] read(long pos, long fp) throws IOException {
+        if(pos+12>length)
+            return null;
+        if(pos>=flushed) {
+            out.flush();
+            flushed=length;
+        }
+        ByteBuffer head=ByteBuffer.allocate(12);
+        readFully(head,pos);
+        int len=head.getInt(0);
+        if(len<8 || pos+len+8>length || head.getLong(4)!=fp)
+            return null;
+        ByteBuffer b=ByteBuffer.allocate(len-8);
+        readFully(b,pos+12);
+        return b.array();
+    }
+
+    private void readFully(ByteBuffer b, long pos) throws IOException {
+        while(b.hasRemaining())
+            if(data.read(b,pos+b.position())<0)
+                throw new EOFException();
+    }
+
+    /** Indicizza i record successivi alla posizione from
+     * @return la lunghezza dei dati validi */
+    private long recover(long from) throws IOException {
+        long pos=from;
+        data.position(from);
+        DataInputStream in=new DataInputStream(new BufferedInputStream(Channels.newInputStream(data),1<<16));
+        try {
+            while(true) {
+                int len=in.readInt();
+                if(len<8 || pos+len+8>data.size())
+                    break;
+                byte[] payload=new byte[len];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if(in.readInt()!=(int)crc.getValue())
+                    break;
+                index(fingerprintOf(payload),pos);
+                pos+=len+8;
+            }
+        } catch(EOFException e) {}
+        index.putLong(16,pos);
+        return pos;
+    }
+
+    /** Elimina dall'indice gli slot che puntano a posizioni non inferiori a end,
+     * reindicizzando gli altri */
+    private void dropBeyond(long end) throws IOException {
+        int n=0;
+        long[] fps=new long[slots], positions=new long[slots];
+        boolean stale=false;
+        for(int i=0;i<slots;i++) {
+            long pos=index.getLong(HEADER+i*SLOT+8);
+            if(pos==0)
+                continue;
+            if(pos-1>=end)
+                stale=true;
+            else {
+                fps[n]=index.getLong(HEADER+i*SLOT);
+                positions[n++]=pos-1;
+            }
+        }
+        if(!stale)
+            return;
+        long indexed=index.getLong(16);
+        clear();
+        for(int i=0;i<n;i++)
+            index(fps[i],positions[i]);
+        index.putLong(16,indexed);
+        index.force();
+    }
+
+    /** L'impronta di un record è nei suoi primi 8 byte, prima del contenuto */
+    private static long fingerprintOf(byte[] payload) {
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    private void index(long fp, long pos) throws IOException {
+        if(2*(count+1)>slots)
+            grow();
+        int mask=slots-1, i=(int)fp&mask;
+        while(true) {
+            int at=HEADER+i*SLOT;
+            if(index.getLong(at+8)==0) {
+                index.putLong(at,fp);
+                index.putLong(at+8,pos+1);
+                index.putLong(8,++count);
+                return;
+            }
+            if(index.getLong(at)==fp) {
+                index.putLong(at+8,pos+1);
+                return;
+            }
+            i=(i+1)&mask;
+        }
+    }
+
+    /** Raddoppia l'indice in un file nuovo, che poi sostituisce atomicamente il
+     * vecchio */
+    private void grow() throws IOException {
+        Path idx=dir.resolve(INDEX), tmp=dir.resolve(INDEX+".tmp");
+        MappedByteBuffer old=index;
+        FileChannel oldChannel=indexChannel;
+        int oldSlots=slots;
+        //map azzera count inizializzando il nuovo indice
+        long n=count;
+        Files.deleteIfExists(tmp);
+        map(tmp,slots*2);
+        for(int i=0;i<oldSlots;i++) {
+            long pos=old.getLong(HEADER+i*SLOT+8);
+            if(pos!=0)
+                index(old.getLong(HEADER+i*SLOT),pos-1);
+        }
+        count=n;
+        index.putLong(8,count);
+        index.putLong(16,old.getLong(16));
+        index.force();
+        oldChannel.close();
+        Files.move(tmp,idx,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void map(Path p, int n) throws IOException {
+        indexChannel=FileChannel.open(p,StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE);
+        slots=n;
+        index=indexChannel.map(FileChannel.MapMode.READ_WRITE,0,HEADER+(long)n*SLOT);
+        if(index.getInt(0)!=MAGIC)
+            clear();
+    }
+
+    private void clear() {
+        for(int i=0;i<index.capacity();i+=8)
+            index.putLong(i,0);
+        index.putInt(0,MAGIC);
+        count=0;
+    }
+}
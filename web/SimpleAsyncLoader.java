@@ -4,23 +4,67 @@ import java.net.URL;
 import java.util.concurrent.*;
 
 public class SimpleAsyncLoader implements AsyncLoader{
-    private ConcurrentLinkedQueue<Loader> loaderPool;
-    private ConcurrentLinkedQueue<Future<LoadResult>> tasks;
+    private LoaderPool loaderPool;
+    //i Future dei download terminati, accodati solo dopo trackCompletions,
+    //altrimenti la coda crescerebbe senza limiti se nessuno la svuota
+    private BlockingQueue<Future<LoadResult>> completed;
+    private volatile boolean tracking;
     private ExecutorService pool;
-    private CompletionService<LoadResult> exec;
+
+    /** Numero massimo di thread del pool che sostituisce i virtual thread quando il
+     * runtime non li supporta */
+    static final int MAX_FALLBACK_THREADS=200;
 
     public SimpleAsyncLoader(){
-        loaderPool=new ConcurrentLinkedQueue<>();
-        tasks=new ConcurrentLinkedQueue<>();
-        int cpu=Runtime.getRuntime().availableProcessors();
-        for(int i=0;i<cpu;i++)
-            loaderPool.add(WebFactory.getLoader());
-        pool=Executors.newFixedThreadPool(cpu,tf->{
-            Thread t = new Thread(tf);
-            t.setDaemon(true);
-            return t;
-        });
-        exec=new ExecutorCompletionService<>(pool);
+        this(Runtime.getRuntime().availableProcessors(),false);
+    }
+
+    /** Come {@link SimpleAsyncLoader#SimpleAsyncLoader(int, int, boolean)} con
+     * tanti Loader quanti sono i download contemporanei.
+     * @param concurrency  numero di Loader, cioè di download contemporanei
+     * @param virtual  se usare i virtual thread
+     * @throws IllegalArgumentException se concurrency non è positivo */
+    public SimpleAsyncLoader(int concurrency, boolean virtual){
+        this(concurrency,concurrency,virtual);
+    }
+
+    /** Crea un loader asincrono con un pool di al più loaders Loader, creati solo
+     * quando servono. Se virtual è true e il runtime supporta i virtual thread, ogni
+     * download è eseguito in un proprio virtual thread, così un thread bloccato in
+     * {@link Loader#load(URL)} non costa quasi nulla e il numero di download
+     * contemporanei non dipende dal numero di CPU. Altrimenti i download sono
+     * eseguiti da un pool di threads thread. Se virtual è true ma il runtime non
+     * supporta i virtual thread (prima di Java 21), si usa un pool di thread normali
+     * limitato a {@value #MAX_FALLBACK_THREADS} thread, perché threads potrebbe essere
+     * stato scelto pensando a thread quasi gratuiti: in tal caso i download
+     * contemporanei non sono più di {@value #MAX_FALLBACK_THREADS}. In ogni caso al
+     * più loaders download sono in corso contemporaneamente.
+     * @param threads  numero di thread se non si usano i virtual thread
+     * @param loaders  numero massimo di Loader
+     * @param virtual  se usare i virtual thread
+     * @throws IllegalArgumentException se threads o loaders non è positivo */
+    public SimpleAsyncLoader(int threads, int loaders, boolean virtual){
+        if(threads<=0)
+            throw new IllegalArgumentException();
+        loaderPool=new LoaderPool(loaders);
+        completed=new LinkedBlockingQueue<>();
+        pool=virtual?virtualExecutor():null;
+        if(pool==null)
+            pool=Executors.newFixedThreadPool(virtual?Math.min(threads,MAX_FALLBACK_THREADS):threads,tf->{
+                Thread t = new Thread(tf);
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    /** Ritorna un executor che crea un virtual thread per ogni task o null se il
+     * runtime non supporta i virtual thread (Java 21 o successivo). */
+    private static ExecutorService virtualExecutor(){
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
     }
 
     /**
@@ -33,25 +77,84 @@ public class SimpleAsyncLoader implements AsyncLoader{
      */
     @Override
     public Future<LoadResult> submit(URL url) throws IllegalStateException{
-        Future<LoadResult> res=null;
         if(!pool.isShutdown()) {
-                res=exec.submit(()->{
-                    while(loaderPool.isEmpty())
-                        try{
-                            Thread.sleep(10);
-                        }catch(InterruptedException e){}
-                    Loader loader=loaderPool.poll();
-                    LoadResult r=loader.load(url);
-                    loaderPool.add(loader);
-                    return r;
-                });
-                tasks.add(res);
-            return tasks.poll();
+            //il CompletableFuture permette a chi lo riceve di registrare callback
+            CompletableFuture<LoadResult> res=new CompletableFuture<>();
+            Future<?> task=pool.submit(()->{
+                try {
+                    res.complete(load(url));
+                } catch (Throwable t) {
+                    //anche un Error deve completare il Future, altrimenti chi lo attende resta bloccato
+                    res.completeExceptionally(t);
+                }
+            });
+            res.whenComplete((r,e)->{
+                if(res.isCancelled())
+                    task.cancel(true);
+                //è accodato lo stesso Future ritornato, così chi lo riceve da take lo riconosce
+                if(tracking)
+                    completed.add(res);
+            });
+            return res;
         }
         else
             throw new IllegalStateException();
     }
 
+    private LoadResult load(URL url) throws InterruptedException {
+        Loader loader;
+        while((loader=loaderPool.checkout(1,TimeUnit.SECONDS))==null)
+            if(pool.isShutdown())
+                return new LoadResult(url,null,new IllegalStateException("Loader chiuso"));
+        boolean ok=false;
+        try {
+            LoadResult r=loader.load(url);
+            ok=true;
+            return r;
+        } catch (RuntimeException e) {
+            return new LoadResult(url,null,e);
+        } finally {
+            //un Loader che lancia eccezioni o errori non è più affidabile
+            if(ok)
+                loaderPool.checkin(loader);
+            else
+                loaderPool.evict(loader);
+        }
+    }
+
+    /** Attiva la coda di completamento: da ora in poi il Future di ogni download
+     * che termina è accodato e può essere ottenuto, nell'ordine in cui i download
+     * terminano, con {@link SimpleAsyncLoader#take()} o
+     * {@link SimpleAsyncLoader#poll(long, TimeUnit)}. Sono gli stessi Future
+     * ritornati da submit. Una volta attivata, la coda va svuotata regolarmente. */
+    public void trackCompletions() {
+        tracking=true;
+    }
+
+    /** Ritorna il Future del prossimo download terminato, attendendo se non ce ne
+     * sono.
+     * @throws IllegalStateException se la coda di completamento non è attiva
+     * @throws InterruptedException se il thread è interrotto durante l'attesa
+     * @return il Future di un download terminato */
+    public Future<LoadResult> take() throws InterruptedException {
+        if(!tracking)
+            throw new IllegalStateException();
+        return completed.take();
+    }
+
+    /** Ritorna il Future del prossimo download terminato, attendendo al più il
+     * tempo specificato.
+     * @param timeout  il tempo massimo di attesa
+     * @param unit  l'unità di misura di timeout
+     * @throws IllegalStateException se la coda di completamento non è attiva
+     * @throws InterruptedException se il thread è interrotto durante l'attesa
+     * @return il Future di un download terminato o null se il tempo è scaduto */
+    public Future<LoadResult> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if(!tracking)
+            throw new IllegalStateException();
+        return completed.poll(timeout,unit);
+    }
+
     /**
      * Chiude il loader e rilascia tutte le risorse. Dopo di ciò non può più
      * essere usato.
@@ -1,35 +1,174 @@
 package wsa.web;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
-public class SimpleCrawler implements Crawler{
-    private volatile Set<URI> succDownload;
-    private volatile Set<URI> toDownload;
-    private volatile Set<URI> failDownload;
+public class SimpleCrawler implements Crawler, Flow.Publisher<CrawlerResult>{
+    private final URIStates index;
+    private final Set<URI> succDownload;
+    private final Set<URI> toDownload;
+    private final Set<URI> failDownload;
     private final Predicate<URI> rule;
+    private volatile UnaryOperator<URI> canonicalizer = UnaryOperator.identity();
+    private volatile BloomFilter seenLinks;
+    //link frequenti già risolti, in ordine di accesso (LRU)
+    private final Map<String,URI> hotLinks = Collections.synchronizedMap(new LinkedHashMap<String,URI>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,URI> eldest) {
+            return size() > 4096;
+        }
+    });
     private volatile AsyncLoader loader;
     private volatile boolean running;
-    private volatile ConcurrentLinkedQueue<Future<LoadResult>> tasks;
-    private volatile ConcurrentLinkedQueue<CrawlerResult> results;
-    private volatile Thread downloadThread;
+    private final int window;
+    private volatile Frontier frontier;
+    private final BlockingQueue<Future<LoadResult>> completed;
+    private final ResultPublisher results;
+    //riceve ogni risultato senza perdite, prima di get e dei sottoscrittori
+    private volatile Consumer<CrawlerResult> sink;
+    //esegue i passi della pipeline; proprio o condiviso con altri Crawler
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownScheduler;
+    //i download in corso, usati solo da un passo della pipeline alla volta
+    private final Map<Future<LoadResult>,Frontier.Entry> inFlight = new HashMap<>();
+    private final Set<URI> inFlightURIs = new HashSet<>();
+    //un passo è in coda o in esecuzione; again: un evento è arrivato durante il passo
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private volatile boolean again;
+    //il thread che esegue il passo corrente, interrotto da suspend; halted: la
+    //pipeline è ferma e non produce più risultati fino al prossimo start
+    private final Object stepLock = new Object();
+    private Thread stepping;
+    private boolean halted = true;
+    //il controllo periodico, attivo solo finché c'è lavoro; protetto da stepLock
+    private ScheduledFuture<?> tick;
+    private volatile RuntimeException failure;
+
+    /** Numero di default di download contemporaneamente in corso */
+    public static final int WINDOW=Math.max(16,4*Runtime.getRuntime().availableProcessors());
+    /** Numero di default di risultati in attesa di get tenuti in memoria */
+    public static final int RESULTS=1024;
+    /** Secondi massimi per cui un risultato attende che un sottoscrittore con il
+     * buffer pieno abbia spazio, dopo i quali non gli è consegnato */
+    public static final int DELIVERY_TIMEOUT=10;
 
     public SimpleCrawler(Collection<URI> succDownload, Collection<URI> toDownload, Collection<URI> failDownload, Predicate<URI> rule) {
-        this.succDownload = new HashSet<>(succDownload);
-        this.toDownload = new HashSet<>(toDownload);
-        this.failDownload = new HashSet<>(failDownload);
+        this(succDownload,toDownload,failDownload,rule,WINDOW);
+    }
+
+    /** Crea un Crawler che ha al più window download contemporaneamente in corso.
+     * La memoria occupata dai download in corso è quindi limitata qualunque sia la
+     * dimensione della frontiera.
+     * @param succDownload  insieme URI scaricati
+     * @param toDownload  insieme URI da scaricare
+     * @param failDownload  insieme URI con errori
+     * @param rule  determina gli URI per i quali i link contenuti nelle
+     *              relative pagine sono usati per continuare il crawling
+     * @param window  numero massimo di download in corso
+     * @throws IllegalArgumentException se window non è positivo */
+    public SimpleCrawler(Collection<URI> succDownload, Collection<URI> toDownload, Collection<URI> failDownload, Predicate<URI> rule, int window) {
+        this(succDownload,toDownload,failDownload,rule,window,new URIStates());
+    }
+
+    /** Crea un Crawler che tiene lo stato degli URI nell'indice dato, che deve
+     * essere vuoto. Con un indice in modalità compatta
+     * ({@link URIStates#URIStates(boolean, boolean)}) gli URI già scaricati o con
+     * errori occupano poca memoria anche in crawl molto grandi.
+     * @param succDownload  insieme URI scaricati
+     * @param toDownload  insieme URI da scaricare
+     * @param failDownload  insieme URI con errori
+     * @param rule  determina gli URI per i quali i link contenuti nelle
+     *              relative pagine sono usati per continuare il crawling
+     * @param window  numero massimo di download in corso
+     * @param index  l'indice degli stati degli URI
+     * @throws IllegalArgumentException se window non è positivo */
+    public SimpleCrawler(Collection<URI> succDownload, Collection<URI> toDownload, Collection<URI> failDownload, Predicate<URI> rule, int window, URIStates index) {
+        this(succDownload,toDownload,failDownload,rule,window,index,WebFactory.getAsyncLoader());
+    }
+
+    /** Crea un Crawler che scarica le pagine con il loader dato invece che con
+     * quello fornito da {@link WebFactory#getAsyncLoader()}, ad esempio un loader
+     * condiviso da più Crawler ({@link MultiSiteCrawler}). Il Crawler è cancellato
+     * quando il loader è chiuso e lo chiude quando è cancellato.
+     * @param succDownload  insieme URI scaricati
+     * @param toDownload  insieme URI da scaricare
+     * @param failDownload  insieme URI con errori
+     * @param rule  determina gli URI per i quali i link contenuti nelle
+     *              relative pagine sono usati per continuare il crawling
+     * @param window  numero massimo di download in corso
+     * @param index  l'indice degli stati degli URI
+     * @param loader  il loader asincrono
+     * @throws IllegalArgumentException se window non è positivo */
+    public SimpleCrawler(Collection<URI> succDownload, Collection<URI> toDownload, Collection<URI> failDownload, Predicate<URI> rule, int window, URIStates index, AsyncLoader loader) {
+        this(succDownload,toDownload,failDownload,rule,window,index,loader,null,null);
+    }
+
+    /** Crea un Crawler la cui pipeline è eseguita dallo scheduler dato e i cui
+     * sottoscrittori sono serviti dall'executor dato, entrambi condivisi con altri
+     * Crawler e non chiusi dalla cancellazione ({@link MultiSiteCrawler}). La
+     * pipeline non occupa un thread: è eseguita a brevi passi, ognuno dei quali
+     * elabora i download terminati e ne avvia di nuovi, quindi uno scheduler con
+     * pochi thread serve a turno un numero qualsiasi di Crawler.
+     * @param succDownload  insieme URI scaricati
+     * @param toDownload  insieme URI da scaricare
+     * @param failDownload  insieme URI con errori
+     * @param rule  determina gli URI per i quali i link contenuti nelle
+     *              relative pagine sono usati per continuare il crawling
+     * @param window  numero massimo di download in corso
+     * @param index  l'indice degli stati degli URI
+     * @param loader  il loader asincrono
+     * @param scheduler  lo scheduler della pipeline o null per uno proprio, con
+     *                   un thread che termina durante la sospensione
+     * @param delivery  l'executor dei sottoscrittori o null per un pool proprio
+     * @throws IllegalArgumentException se window non è positivo */
+    public SimpleCrawler(Collection<URI> succDownload, Collection<URI> toDownload, Collection<URI> failDownload, Predicate<URI> rule, int window, URIStates index, AsyncLoader loader, ScheduledExecutorService scheduler, Executor delivery) {
+        if(window<=0)
+            throw new IllegalArgumentException();
+        this.window=window;
+        this.index = index;
+        for (URI u : succDownload)
+            index.add(u, URIStates.State.LOADED);
+        for (URI u : failDownload)
+            index.add(u, URIStates.State.ERROR);
+        for (URI u : toDownload)
+            index.add(u);
+        this.succDownload = index.view(URIStates.State.LOADED);
+        this.toDownload = index.view(URIStates.State.TO_LOAD);
+        this.failDownload = index.view(URIStates.State.ERROR);
         if(rule!=null)
             this.rule=rule;
         else
             this.rule=(s)->true;
-        loader=WebFactory.getAsyncLoader();
+        this.loader=loader;
         running=false;
-        tasks=new ConcurrentLinkedQueue<>();
-        results=new ConcurrentLinkedQueue<>();
+        frontier=new FifoFrontier();
+        for(URI u:this.toDownload)
+            frontier.offer(new Frontier.Entry(u,0));
+        completed=new LinkedBlockingQueue<>();
+        results=new ResultPublisher(new ResultQueue(RESULTS, ResultQueue.Overflow.SPILL), delivery);
+        ownScheduler=scheduler==null;
+        if(ownScheduler) {
+            ScheduledThreadPoolExecutor own=new ScheduledThreadPoolExecutor(1, tf->{
+                Thread t = new Thread(tf);
+                t.setDaemon(true);
+                return t;
+            });
+            own.setKeepAliveTime(1, TimeUnit.SECONDS);
+            own.allowCoreThreadTimeOut(true);
+            own.setRemoveOnCancelPolicy(true);
+            this.scheduler=own;
+        }
+        else
+            this.scheduler=scheduler;
     }
 
     /**
@@ -43,17 +182,101 @@ public class SimpleCrawler implements Crawler{
      */
     @Override
     public void add(URI uri) throws IllegalStateException{
-        if(!loader.isShutdown()){
-            Set<URI> allURIs = new HashSet<>(succDownload);
-            allURIs.addAll(toDownload);
-            allURIs.addAll(failDownload);
-            if(!allURIs.contains(uri))
-                toDownload.add(uri);
-        }
+        if(!loader.isShutdown())
+            add(canonicalizer.apply(uri), 0);
         else
             throw new IllegalStateException();
     }
 
+    /** Aggiunge l'URI, già canonico, alla frontiera se è nuovo */
+    private void add(URI uri, int depth) {
+        if (index.add(uri)) {
+            frontier.offer(new Frontier.Entry(uri, depth));
+            if (running)
+                schedule();
+        }
+    }
+
+    /** Imposta la frontiera, cioè l'ordine in cui gli URI sono scaricati, ad
+     * esempio una {@link PriorityFrontier}. Gli URI della frontiera corrente sono
+     * trasferiti nella nuova. Di default la frontiera è una {@link FifoFrontier}.
+     * @param f  la nuova frontiera
+     * @throws IllegalStateException se il Crawler è in esecuzione */
+    public void setFrontier(Frontier f) {
+        if (running)
+            throw new IllegalStateException();
+        Frontier old = frontier;
+        Frontier.Entry e;
+        while ((e = old.poll()) != null)
+            f.offer(e);
+        frontier = f;
+        close(old);
+    }
+
+    /** Rilascia le risorse di una frontiera che non è più usata, ad esempio i file
+     * di una {@link SpillingFrontier}. Un errore è ritornato da getFailure. */
+    private void close(Frontier f) {
+        if (f instanceof Closeable)
+            try {
+                ((Closeable) f).close();
+            } catch (IOException e) {
+                failure = new UncheckedIOException(e);
+            } catch (UncheckedIOException e) {
+                failure = e;
+            }
+    }
+
+    /** Imposta la coda dei risultati in attesa di get, che ne limita il numero in
+     * memoria e decide cosa fare dei risultati in più se chi li legge è più lento
+     * del crawling. I risultati della coda corrente sono trasferiti nella nuova. Di
+     * default la coda tiene in memoria {@link SimpleCrawler#RESULTS} risultati e
+     * accoda gli altri su disco in una directory temporanea
+     * ({@link ResultQueue.Overflow#SPILL}), così, come con una coda illimitata,
+     * nessun risultato è perso e il crawling non attende chi li legge. Con
+     * {@link ResultQueue.Overflow#BLOCK} il crawling attende invece che siano
+     * letti.
+     * @param q  la nuova coda
+     * @throws IllegalStateException se il Crawler è in esecuzione */
+    public void setResultQueue(ResultQueue q) {
+        if (running)
+            throw new IllegalStateException();
+        results.setQueue(q);
+    }
+
+    /** Imposta lo stadio che riceve ogni risultato nel passo della pipeline che lo
+     * produce, prima che l'URI passi nell'insieme dei scaricati o degli errori, ad
+     * esempio per archiviarlo ({@link SimpleSiteCrawler}). A differenza dei
+     * sottoscrittori lo stadio non perde risultati; il passo attende lo stadio,
+     * che quindi deve essere veloce. Finché c'è uno stadio i risultati sono passati
+     * solo a lui e non sono né accodati per get né consegnati ai sottoscrittori.
+     * @param sink  lo stadio o null per nessuno */
+    void setSink(Consumer<CrawlerResult> sink) {
+        this.sink = sink;
+    }
+
+    /** Imposta lo stadio di canonicalizzazione applicato agli URI aggiunti e ai
+     * link delle pagine prima del controllo dei duplicati, ad esempio un
+     * {@link URICanonicalizer}. Gli URI negli insiemi e nei risultati sono quelli
+     * canonici. Di default gli URI non sono modificati.
+     * @param canonicalizer  la funzione che dà la forma canonica di un URI o null
+     *                       per non modificarli */
+    public void setCanonicalizer(UnaryOperator<URI> canonicalizer) {
+        this.canonicalizer = canonicalizer != null ? canonicalizer : UnaryOperator.identity();
+    }
+
+    /** Imposta il filtro di Bloom usato per scartare i link già visti prima di
+     * farne il parsing. Il filtro è interrogato con il link grezzo (combinato con
+     * l'origine della pagina se è relativo alla radice dell'host), così i link
+     * assoluti o relativi alla radice ripetuti da ogni pagina (menu, footer)
+     * costano poche letture del filtro e, se frequenti, nessun parsing. Gli altri
+     * link relativi sono sempre risolti e controllati nell'indice. Un falso positivo del filtro fa
+     * ignorare un link nuovo, con la probabilità scelta alla creazione del
+     * filtro. Di default non c'è filtro.
+     * @param filter  il filtro o null per non usarlo */
+    public void setSeenFilter(BloomFilter filter) {
+        seenLinks = filter;
+    }
+
     /**
      * Inizia l'esecuzione del Crawler se non è già in esecuzione e ci sono URI
      * da scaricare, altrimenti l'invocazione è ignorata. Quando è in esecuzione
@@ -65,101 +288,345 @@ public class SimpleCrawler implements Crawler{
     public void start() throws IllegalStateException{
         if (!loader.isShutdown()) {
             if(!running) {
+                synchronized (stepLock) {
+                    halted = false;
+                }
                 running = true;
-                downloadThread = new Thread(() -> {
-                    while (running && toDownload.size() > 0) {
-                        Iterator<URI> uris = toDownload.iterator();
-                        while (uris.hasNext()) {
-                            URI u = uris.next();
-                            boolean tested = rule.test(u);
-                            Exception ex = null;
-                            try {
-                                URL url = u.toURL();
-                                tasks.add(loader.submit(url));
-                            } catch (Exception e) {
-                                ex = e;
-                                results.add(new CrawlerResult(u, tested, null, null, ex));
-                                uris.remove();
-                                toDownload.remove(u);
-                                failDownload.add(u);
-                            }
-                        }
-
-                        while (!tasks.isEmpty()) {
-                            Future<LoadResult> t = tasks.poll();
-                            LoadResult res = null;
-                            URI u = null;
-                            boolean tested = false;
-                            Exception ex = null;
-                            try {
-                                res = t.get(2000, TimeUnit.MILLISECONDS);
-                                if (res.exc == null) {
-                                    u = res.url.toURI();
-                                    tested = rule.test(u);
-                                    ex = res.exc;
-
-                                    List<String> resLinks = res.parsed.getLinks();
-                                    List<String> failLinks = new ArrayList<>(resLinks);
-                                    List<URI> absLinks = new ArrayList<>();
-
-                                    Iterator<String> links = resLinks.iterator();
-                                    if (tested) {
-                                        while (links.hasNext()) {
-                                            try {
-                                                String s = links.next();
-                                                URI var = URI.create(s);
-                                                URI newURI = u.resolve(var);
-                                                URL url = newURI.toURL();
-                                                absLinks.add(newURI);
-                                                links.remove();
-                                                failLinks.remove(s);
-                                                add(newURI);
-                                            } catch (Exception e) {
-                                                System.out.println(u);
-                                                ex = e;
-                                                links.remove();
-                                                toDownload.remove(u);
-                                                failDownload.add(u);
-                                            }
-                                        }
-                                    }
-
-                                    if (toDownload.remove(u))
-                                        succDownload.add(u);
-
-                                    results.add(new CrawlerResult(u, tested, absLinks, failLinks, ex));
-                                }
-                            } catch (URISyntaxException e) {
-                                ex = e;
-                                results.add(new CrawlerResult(u, tested, null, null, ex));
-                            } catch (TimeoutException | ExecutionException | InterruptedException e) {
-                                tasks.add(t);
-                            }
-                        }
-                    }
-                });
-                downloadThread.setDaemon(true);
-                downloadThread.start();
+                failure = null;
+                //il primo passo attiva il controllo periodico se c'è lavoro
+                schedule();
             }
         } else
             throw new IllegalStateException();
     }
 
+    /** Accoda un passo della pipeline, se non ce n'è già uno in coda. Se un passo è
+     * in esecuzione, ne sarà eseguito un altro appena termina. */
+    private void schedule() {
+        again = true;
+        if (queued.compareAndSet(false, true))
+            try {
+                scheduler.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                //lo scheduler condiviso è stato chiuso: la pipeline non può più avanzare
+                queued.set(false);
+                halt();
+            }
+    }
+
+    /** Esegue un passo della pipeline. Il passo successivo torna in coda invece di
+     * essere eseguito subito, così uno scheduler condiviso serve i Crawler a
+     * turno. */
+    private void run() {
+        again = false;
+        synchronized (stepLock) {
+            stepping = Thread.currentThread();
+        }
+        try {
+            step();
+        } finally {
+            synchronized (stepLock) {
+                stepping = null;
+                //un'interruzione di suspend non deve arrivare al passo di un altro Crawler
+                Thread.interrupted();
+            }
+            queued.set(false);
+        }
+        if (again)
+            schedule();
+    }
+
+    /** Un passo della pipeline: elabora i download terminati, i cui link tornano
+     * nella frontiera, e riporta a window i download in corso prendendo gli URI
+     * dalla frontiera. Non ci sono ondate: un download lento non blocca gli altri.
+     * Dopo la sospensione riporta nella frontiera i download interrotti. */
+    private void step() {
+        if (!running) {
+            stop();
+            halt();
+            return;
+        }
+        try {
+            Future<LoadResult> f;
+            boolean notified = false;
+            while ((f = completed.poll()) != null) {
+                notified = true;
+                //può essere di un'esecuzione precedente alla sospensione
+                Frontier.Entry u = inFlight.remove(f);
+                if (u != null) {
+                    inFlightURIs.remove(u.uri);
+                    done(u, f);
+                }
+            }
+            if (!notified) {
+                //Future che non notificano il completamento
+                Iterator<Map.Entry<Future<LoadResult>,Frontier.Entry>> it = inFlight.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Future<LoadResult>,Frontier.Entry> e = it.next();
+                    if (e.getKey().isDone()) {
+                        it.remove();
+                        inFlightURIs.remove(e.getValue().uri);
+                        done(e.getValue(), e.getKey());
+                    }
+                }
+            }
+            Frontier.Entry u;
+            while (running && inFlight.size() < window && (u = frontier.poll()) != null) {
+                if (!toDownload.contains(u.uri) || !inFlightURIs.add(u.uri))
+                    continue;
+                try {
+                    Future<LoadResult> g = loader.submit(u.uri.toURL());
+                    inFlight.put(g, u);
+                    if (g instanceof CompletableFuture)
+                        ((CompletableFuture<LoadResult>) g).whenComplete((r, e) -> {
+                            completed.add(g);
+                            schedule();
+                        });
+                } catch (Exception e) {
+                    inFlightURIs.remove(u.uri);
+                    fail(u.uri, e);
+                }
+            }
+            if (inFlight.isEmpty() && frontier.isEmpty() && !toDownload.isEmpty()) {
+                //URI aggiunti direttamente all'insieme senza passare da add;
+                //isEmpty usa il contatore dell'indice, senza scorrere gli URI
+                for (URI t : toDownload)
+                    frontier.offer(new Frontier.Entry(t, 0));
+                again = true;
+            }
+            //i download che non notificano il completamento e gli URI aggiunti
+            //direttamente all'insieme sono controllati a intervalli regolari, ma solo
+            //finché c'è lavoro: un Crawler che ha finito non sveglia lo scheduler e
+            //il controllo riprende con il passo di add o di start
+            if (inFlight.isEmpty() && toDownload.isEmpty())
+                cancelTick();
+            else
+                armTick();
+        } catch (RuntimeException e) {
+            //ad esempio un errore di I/O di una SpillingFrontier: il crawling si ferma
+            //e l'errore è ritornato da getFailure
+            failure = e;
+            running = false;
+            cancelTick();
+            stop();
+            halt();
+        }
+    }
+
+    /** Registra che la pipeline si è fermata e sveglia chi lo attende in suspend */
+    private void halt() {
+        synchronized (stepLock) {
+            halted = true;
+            stepLock.notifyAll();
+        }
+    }
+
+    /** Attende che la pipeline si fermi, a meno che a chiederlo sia il passo stesso
+     * (ad esempio lo stadio dei risultati che sospende il Crawler), che si
+     * fermerebbe solo dopo il ritorno */
+    private void awaitHalt() {
+        synchronized (stepLock) {
+            if (stepping == Thread.currentThread())
+                return;
+            try {
+                while (!halted)
+                    stepLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Riporta nella frontiera i download interrotti, per la prossima ripresa */
+    private void stop() {
+        for (Map.Entry<Future<LoadResult>,Frontier.Entry> e : inFlight.entrySet()) {
+            e.getKey().cancel(false);
+            try {
+                frontier.offer(e.getValue());
+            } catch (RuntimeException ex) {
+                //resta da scaricare nell'indice e sarà ripreso da lì
+            }
+        }
+        inFlight.clear();
+        inFlightURIs.clear();
+        completed.clear();
+    }
+
+    /** Attiva il controllo periodico, se il Crawler è in esecuzione e non è già
+     * attivo */
+    private void armTick() {
+        synchronized (stepLock) {
+            if (running && tick == null)
+                try {
+                    tick = scheduler.scheduleWithFixedDelay(this::schedule, 100, 100, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    //lo scheduler condiviso è stato chiuso
+                }
+        }
+    }
+
+    private void cancelTick() {
+        synchronized (stepLock) {
+            if (tick != null) {
+                tick.cancel(false);
+                tick = null;
+            }
+        }
+    }
+
+    /** Ritorna l'errore che ha fermato il crawling, ad esempio un errore di I/O
+     * della frontiera, o null se non ce n'è stato. Ritorna anche l'errore nella
+     * chiusura di una frontiera non più usata (sostituita con setFrontier o chiusa
+     * da cancel), ad esempio se i file di una {@link SpillingFrontier} non sono
+     * stati cancellati. Il crawling può essere ripreso con start, che azzera
+     * l'errore.
+     * @return l'errore che ha fermato il crawling o null */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /** Elabora il risultato del download di u */
+    private void done(Frontier.Entry entry, Future<LoadResult> f) {
+        URI u = entry.uri;
+        LoadResult res;
+        try {
+            res = f.get();
+        } catch (InterruptedException | CancellationException e) {
+            //sarà scaricato di nuovo alla prossima ripresa
+            frontier.offer(entry);
+            return;
+        } catch (ExecutionException e) {
+            //il loader non ha potuto eseguire il download: riprovare subito fallirebbe di nuovo
+            Throwable c = e.getCause();
+            fail(u, c instanceof Exception ? (Exception) c : e);
+            return;
+        }
+        if (res.exc != null) {
+            fail(u, res.exc);
+            return;
+        }
+        boolean tested = rule.test(u);
+        List<URI> absLinks = null;
+        List<String> failLinks = null;
+        if (tested && res.parsed != null) {
+            absLinks = new ArrayList<>();
+            failLinks = new ArrayList<>();
+            BloomFilter filter = seenLinks;
+            LinkContext ctx = filter != null ? new LinkContext(u) : null;
+            for (String s : res.parsed.getLinks()) {
+                String key = filter != null ? ctx.key(s) : null;
+                boolean seen = key != null && filter.mightContain(key);
+                if (seen) {
+                    //quasi certamente già aggiunto: niente add e, se frequente, niente parsing
+                    URI known = hotLinks.get(key);
+                    if (known != null) {
+                        absLinks.add(known);
+                        continue;
+                    }
+                }
+                try {
+                    URI newURI = canonicalizer.apply(u.resolve(URI.create(s)));
+                    if (seen)
+                        hotLinks.put(key, newURI);
+                    else {
+                        newURI.toURL();
+                        add(newURI, entry.depth + 1);
+                        if (key != null)
+                            filter.put(key);
+                    }
+                    absLinks.add(newURI);
+                } catch (Exception e) {
+                    failLinks.add(s);
+                }
+            }
+        }
+        CrawlerResult r = new CrawlerResult(u, tested, absLinks, failLinks, null);
+        Consumer<CrawlerResult> s = sink;
+        if (s != null)
+            s.accept(r);
+        index.transition(u, URIStates.State.TO_LOAD, URIStates.State.LOADED);
+        if (s == null)
+            results.deliver(r);
+    }
+
+    /** Ritorna una chiave per il link grezzo s della pagina base tale che link con
+     * la stessa chiave si risolvono nello stesso URI assoluto. Serve al filtro di
+     * Bloom per riconoscere i link già visti senza fare il parsing dell'URI. La
+     * chiave è data solo ai link assoluti e a quelli relativi alla radice
+     * dell'host ("//host/..." e "/..."), per i quali è il concatenamento esatto che
+     * fa {@link URI#resolve(URI)}. Per gli altri link relativi la risoluzione di
+     * {@link URI#resolve(URI)} (RFC 2396) non è un semplice concatenamento, quindi
+     * non hanno chiave e sono sempre risolti. */
+    private static class LinkContext {
+        //null se la pagina non ha authority: nessun link ha chiave
+        private final String scheme, origin;
+
+        LinkContext(URI base) {
+            boolean ok = !base.isOpaque() && base.getScheme() != null && base.getRawAuthority() != null;
+            scheme = ok ? base.getScheme() + ":" : null;
+            origin = ok ? scheme + "//" + base.getRawAuthority() : null;
+        }
+
+        /** Ritorna la chiave del link o null se non ha chiave */
+        String key(String s) {
+            if (origin == null || s.isEmpty())
+                return null;
+            if (s.startsWith("//"))
+                return scheme + s;
+            if (s.startsWith("/"))
+                return origin + s;
+            if (!Character.isLetter(s.charAt(0)))
+                return null;
+            for (int i = 1; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == ':')
+                    return s;
+                if (!(Character.isLetterOrDigit(c) || c == '+' || c == '-' || c == '.'))
+                    break;
+            }
+            return null;
+        }
+    }
+
+    /** Registra che non è stato possibile scaricare u */
+    private void fail(URI u, Exception e) {
+        CrawlerResult r = new CrawlerResult(u, rule.test(u), null, null, e);
+        Consumer<CrawlerResult> s = sink;
+        if (s != null)
+            s.accept(r);
+        index.set(u, URIStates.State.ERROR);
+        if (s == null)
+            results.deliver(r);
+    }
+
     /**
      * Sospende l'esecuzione del Crawler. Se non è in esecuzione, ignora
      * l'invocazione. L'esecuzione può essere ripresa invocando start. Durante
      * la sospensione l'attività del Crawler dovrebbe essere ridotta al minimo
-     * possibile (eventuali thread dovrebbero essere terminati).
+     * possibile (eventuali thread dovrebbero essere terminati). Ritorna quando la
+     * pipeline si è fermata: i risultati dei download elaborati prima della
+     * sospensione sono già stati consegnati e non ne sono prodotti altri fino
+     * alla ripresa. Se il Crawler si è già fermato da solo, ad esempio per un
+     * errore della frontiera, attende comunque la fine del suo ultimo passo.
      *
      * @throws IllegalStateException se il Crawler è cancellato
      */
     @Override
     public void suspend() throws IllegalStateException{
-        if(!loader.isShutdown())
-            if(running) {
+        if(!loader.isShutdown()) {
+            if (running) {
                 running = false;
-                downloadThread.interrupt();
+                cancelTick();
+                //interrompe l'attesa della coda dei risultati (BLOCK)
+                synchronized (stepLock) {
+                    if (stepping != null)
+                        stepping.interrupt();
+                }
+                //l'ultimo passo riporta nella frontiera i download in corso
+                schedule();
             }
+            awaitHalt();
+        }
         else
             throw new IllegalStateException();
     }
@@ -172,6 +639,10 @@ public class SimpleCrawler implements Crawler{
     public void cancel() {
         suspend();
         loader.shutdown();
+        results.close();
+        if (ownScheduler)
+            scheduler.shutdown();
+        close(frontier);
     }
 
     /**
@@ -185,13 +656,8 @@ public class SimpleCrawler implements Crawler{
     @Override
     public Optional<CrawlerResult> get() throws IllegalStateException{
         if(!loader.isShutdown()){
-            if(running) {
-                while (results.isEmpty())
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {}
-                return Optional.of(results.poll());
-            }
+            if(running)
+                return Optional.ofNullable(results.queue().poll());
             else
                 return Optional.empty();
         }
@@ -199,6 +665,54 @@ public class SimpleCrawler implements Crawler{
             throw new IllegalStateException();
     }
 
+    /** Ritorna fino a max risultati già pronti con una sola sincronizzazione,
+     * attendendo al più il tempo dato che ne sia pronto almeno uno. Serve a chi
+     * consuma molti risultati, che così non paga un'invocazione di get per
+     * ognuno. Se il Crawler non è in esecuzione ritorna solo i risultati già in
+     * coda, senza attendere.
+     * @param max  il numero massimo di risultati
+     * @param timeout  il tempo massimo di attesa del primo risultato
+     * @return i risultati nell'ordine in cui sono stati prodotti, possibilmente
+     * nessuno
+     * @throws IllegalArgumentException se max non è positivo
+     * @throws IllegalStateException se il Crawler è cancellato */
+    public List<CrawlerResult> get(int max, Duration timeout) throws IllegalStateException {
+        if (max <= 0)
+            throw new IllegalArgumentException();
+        if (loader.isShutdown())
+            throw new IllegalStateException();
+        List<CrawlerResult> batch = new ArrayList<>(Math.min(max, RESULTS));
+        results.queue().drainTo(batch, max, timeout, this::isRunning);
+        return batch;
+    }
+
+    /** Trasferisce nella collezione data tutti i risultati già pronti, senza
+     * attendere, con una sola sincronizzazione.
+     * @param c  la collezione in cui aggiungere i risultati
+     * @return il numero di risultati trasferiti
+     * @throws IllegalStateException se il Crawler è cancellato */
+    public int drainTo(Collection<? super CrawlerResult> c) throws IllegalStateException {
+        if (loader.isShutdown())
+            throw new IllegalStateException();
+        return results.queue().drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /** Sottoscrive ai risultati del Crawler, che sono consegnati al sottoscrittore
+     * appena sono prodotti. Ogni sottoscrittore ha un buffer limitato
+     * ({@link Flow#defaultBufferSize()}): se è pieno, i risultati attendono che si
+     * liberi in un buffer del Crawler di al più {@link SimpleCrawler#RESULTS}
+     * risultati, senza fermare il crawling né occupare un thread. Un risultato che
+     * attende più di {@link SimpleCrawler#DELIVERY_TIMEOUT} secondi, o che non sta
+     * nel buffer del Crawler, non è consegnato al sottoscrittore pieno. Finché ci
+     * sono sottoscrittori i risultati non sono ritornati da
+     * {@link SimpleCrawler#get()}. Quando il Crawler è cancellato i sottoscrittori
+     * ricevono onComplete.
+     * @param s  il sottoscrittore */
+    @Override
+    public void subscribe(Flow.Subscriber<? super CrawlerResult> s) {
+        results.subscribe(s);
+    }
+
     /**
      * Ritorna l'insieme di tutti gli URI scaricati, possibilmente vuoto.
      *
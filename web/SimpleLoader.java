@@ -7,12 +7,17 @@ import wsa.JFX;
 import wsa.web.html.ParsedHTML;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class SimpleLoader implements Loader{
     private volatile WebEngine engine;
     private volatile Document doc;
     private volatile Exception ex;
-    private volatile boolean done;
+    private volatile CompletableFuture<Document> pending;
+    //generazione del caricamento richiesto e di quello effettivamente avviato
+    //dalla WebEngine, usate solo nel JavaFX Application Thread
+    private long generation, started=-1;
 
     public SimpleLoader(){
         JFX.exec(()->{
@@ -20,19 +25,20 @@ public class SimpleLoader implements Loader{
                 if (engine == null)
                     engine = new WebEngine();
                 engine.getLoadWorker().stateProperty().addListener((o, ov, nv) -> {
-                    if (nv == Worker.State.SUCCEEDED) {
-                        doc = engine.getDocument();
-                        done=true;
-                        ex=null;
-                    }
-                    else if (nv == Worker.State.FAILED) {
-                        done=true;
-                        ex = new Exception("Errore durante il download");
-                    }
-                    else if (nv == Worker.State.CANCELLED) {
-                        done=true;
-                        ex = new Exception("Download annullato");
+                    if (nv == Worker.State.SCHEDULED) {
+                        started = generation;
+                        return;
                     }
+                    //transizioni di un caricamento precedente sono ignorate
+                    CompletableFuture<Document> p = pending;
+                    if (p == null || started != generation)
+                        return;
+                    if (nv == Worker.State.SUCCEEDED)
+                        p.complete(engine.getDocument());
+                    else if (nv == Worker.State.FAILED)
+                        p.completeExceptionally(new Exception("Errore durante il download"));
+                    else if (nv == Worker.State.CANCELLED)
+                        p.completeExceptionally(new Exception("Download annullato"));
                 });
             }catch(Exception e){
                 ex=e;
@@ -49,42 +55,47 @@ public class SimpleLoader implements Loader{
     @Override
     public LoadResult load(URL url) {
         ParsedHTML parsed=null;
-        //caricamento di una pagina vuota (reset della WebEngine)
-        JFX.exec(() -> {
-            try {
-                done=false;
-                doc=null;
-                engine.load("");
-            } catch (Exception e) {}
-        });
-        while (!done)
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                break;
-            }
+        ex=null;
+        doc=null;
+        try {
+            doc=waitLoad(url.toString());
+        } catch (Exception e) {
+            ex=e;
+        }
+
+        if(doc!=null)
+            parsed=new ParsedHTML(doc);
+        else if(ex==null)
+            ex=new Exception("Errore durante il download");
+        return new LoadResult(url,parsed,ex);
+    }
 
+    /** Carica la location data nella WebEngine e attende, senza polling, che il
+     * caricamento raggiunga uno stato finale (SUCCEEDED, FAILED o CANCELLED).
+     * Ogni caricamento ha una propria generazione, così le transizioni di stato
+     * di un caricamento precedente non sono confuse con quelle del corrente e
+     * non serve azzerare la WebEngine caricando prima una pagina vuota.
+     * @param location  la location da caricare
+     * @return il documento caricato, possibilmente null
+     * @throws Exception se il caricamento fallisce o è annullato */
+    private Document waitLoad(String location) throws Exception {
+        CompletableFuture<Document> p=new CompletableFuture<>();
         JFX.exec(() -> {
             try {
-                done=false;
-                doc=null;
-                engine.load(url.toString());
+                generation++;
+                pending=p;
+                engine.load(location);
             } catch (Exception e) {
-                ex=e;
+                p.completeExceptionally(e);
             }
         });
-        while (!done)
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                break;
-            }
-
-        if(doc!=null)
-            parsed=new ParsedHTML(doc);
-        else
-            ex=new Exception("Errore durante il download");
-        return new LoadResult(url,parsed,ex);
+        try {
+            return p.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        } finally {
+            pending=null;
+        }
     }
 
     /**
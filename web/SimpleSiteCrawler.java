@@ -1,18 +1,29 @@
 package wsa.web;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Predicate;
 
-public class SimpleSiteCrawler implements SiteCrawler{
+public class SimpleSiteCrawler implements SiteCrawler, Flow.Publisher<CrawlerResult>{
     private volatile URI dom;
     private final Path dir;
     private volatile Set<URI> succDownload;
@@ -20,10 +31,52 @@ public class SimpleSiteCrawler implements SiteCrawler{
     private volatile Set<URI> failDownload;
     private final Crawler crawler;
     private final Predicate<URI> pageLink;
-    private volatile Thread crawlingThread;
-    private volatile ConcurrentLinkedQueue<CrawlerResult> results;
+    //legge i risultati di un Crawler che non è un SimpleCrawler, null altrimenti
+    private volatile Thread reader;
+    //limitata; i risultati in più sono scartati invece di fermare il crawling, tanto
+    //sono archiviati e si possono rileggere con get(URI)
+    private final ResultPublisher results;
+    //null se non è stata specificata una directory per l'archiviazione
+    private CrawlJournal journal;
+    //il primo errore dell'archivio, dopo il quale il crawling è fermato
+    private volatile IOException failure;
+    //scarica le pagine richieste con get(URI) e non archiviate, creato alla prima necessità
+    private AsyncLoader fetcher;
+    //secondi massimi di attesa di una pagina richiesta con get(URI)
+    private static final int FETCH_TIMEOUT=30;
+
+    /** Ricostruisce lo stato del crawl dai record di un archivio */
+    private static class Restore implements CrawlJournal.Visitor {
+        URI dom;
+        final Set<URI> loaded=new HashSet<>(), toLoad=new HashSet<>(), errors=new HashSet<>();
+
+        @Override
+        public void domain(URI d) {
+            dom=d;
+        }
+
+        @Override
+        public void state(URI uri, URIStates.State s) {
+            loaded.remove(uri);
+            toLoad.remove(uri);
+            errors.remove(uri);
+            (s==URIStates.State.LOADED?loaded:s==URIStates.State.ERROR?errors:toLoad).add(uri);
+        }
+    }
 
     public SimpleSiteCrawler(URI dom, Path dir) throws IllegalArgumentException,IOException{
+        this(dom,dir,WebFactory::getCrawler,null,null,null);
+    }
+
+    /** Crea un SiteCrawler il cui Crawler è creato dalla factory data invece che
+     * da {@link WebFactory#getCrawler(Collection, Collection, Collection, Predicate)}
+     * e che scarica le pagine non archiviate richieste con get(URI) con il loader
+     * dato, che è chiuso dalla cancellazione, o se è null con uno fornito da
+     * {@link WebFactory#getAsyncLoader()}. L'archivio è scritto dall'executor io e
+     * i sottoscrittori sono serviti dall'executor delivery, che possono essere
+     * condivisi con altri SiteCrawler e non sono chiusi dalla cancellazione, o se
+     * sono null da executor propri. */
+    SimpleSiteCrawler(URI dom, Path dir, CrawlerFactory crawlers, AsyncLoader fetcher, ScheduledExecutorService io, Executor delivery) throws IllegalArgumentException,IOException{
         if(dom==null && dir==null)
             throw new IllegalArgumentException();
         if(dom!=null) {
@@ -31,33 +84,55 @@ public class SimpleSiteCrawler implements SiteCrawler{
                 this.dom = dom;
             else
                 throw new IllegalArgumentException();
+            if(dir!=null)
+                journal=CrawlJournal.create(dir,dom,io);
         }
         else {
             if(dir!=null){
                 if(Files.isDirectory(dir)) {
-                    Path file=dir.resolve("downloadData.dat");
-                    try (ObjectInputStream input = new ObjectInputStream(Files.newInputStream(file))) {
-                        Object[] state = (Object[]) input.readObject();
-                        this.dom = (URI) state[0];
-                        succDownload = (Set<URI>) state[1];
-                        toDownload = (Set<URI>) state[2];
-                        failDownload = (Set<URI>) state[3];
-                        results = (ConcurrentLinkedQueue<CrawlerResult>) state[4];
-                    } catch (ClassNotFoundException e) {
+                    //l'archivio è riletto in streaming, record per record
+                    Restore state=new Restore();
+                    try {
+                        journal=CrawlJournal.open(dir,state,io);
+                    } catch(FileNotFoundException e) {
+                        throw new IllegalArgumentException(e);
+                    }
+                    if(state.dom==null) {
+                        journal.close();
                         throw new IllegalArgumentException();
                     }
+                    this.dom=state.dom;
+                    succDownload=state.loaded;
+                    toDownload=state.toLoad;
+                    failDownload=state.errors;
                 }
                 else
                     throw new IllegalArgumentException();
             }
         }
         this.dir=dir;
-        succDownload=new HashSet<>();
-        toDownload=new HashSet<>();
-        failDownload=new HashSet<>();
+        this.fetcher=fetcher;
+        results=new ResultPublisher(new ResultQueue(SimpleCrawler.RESULTS,ResultQueue.Overflow.DROP),delivery);
+        if(succDownload==null) {
+            succDownload=new HashSet<>();
+            toDownload=new HashSet<>();
+            failDownload=new HashSet<>();
+        }
         pageLink=(URI u)->checkSeed(this.dom,u);
-        crawler=WebFactory.getCrawler(succDownload,toDownload,failDownload,pageLink);
-        results=new ConcurrentLinkedQueue<>();
+        //il Crawler riparte dagli URI ancora da scaricare dell'archivio
+        crawler=crawlers.newInstance(succDownload,toDownload,failDownload,pageLink);
+        //i risultati sono archiviati nel passo del Crawler che li produce, senza perdite
+        if(crawler instanceof SimpleCrawler)
+            ((SimpleCrawler)crawler).setSink(this::received);
+        succDownload=crawler.getLoaded();
+        toDownload=crawler.getToLoad();
+        failDownload=crawler.getErrors();
+    }
+
+    /** Ritorna il dominio del SiteCrawler
+     * @return il dominio */
+    URI getDomain() {
+        return dom;
     }
 
     /** Controlla se l'URI specificato è un dominio. È un dominio se è un URI
@@ -98,14 +173,14 @@ public class SimpleSiteCrawler implements SiteCrawler{
                 succDownload=crawler.getLoaded();
                 toDownload=crawler.getToLoad();
                 failDownload=crawler.getErrors();
-
-                Set<URI> allURIs=new HashSet<>(succDownload);
-                allURIs.addAll(toDownload);
-                allURIs.addAll(failDownload);
-                if(!allURIs.contains(uri)) {
-                    toDownload.add(uri);
-                    crawler.getToLoad().add(uri);
-                }
+                if(journal!=null && !succDownload.contains(uri) && !toDownload.contains(uri) && !failDownload.contains(uri))
+                    try {
+                        journal.state(uri,URIStates.State.TO_LOAD);
+                    } catch(IOException e){
+                        archiveFailed(e);
+                    }
+                //il Crawler ignora gli URI già presenti
+                crawler.add(uri);
             }
             else
                 throw new IllegalArgumentException();
@@ -124,56 +199,108 @@ public class SimpleSiteCrawler implements SiteCrawler{
     @Override
     public void start() throws IllegalStateException{
         if(!isCancelled()){
-            if(!crawler.isRunning()) {
-                crawlingThread = new Thread(() -> {
-                    addSeed(dom);
+            //un crawling che non può essere archiviato non riparte
+            if(!crawler.isRunning() && failure==null) {
+                addSeed(dom);
+                //i risultati arrivano direttamente dal Crawler, senza thread intermedi
+                if(crawler instanceof SimpleCrawler)
                     crawler.start();
-                    while (!crawler.isCancelled()) {
-                        Optional<CrawlerResult> var = crawler.get();
-                        while (var == null || !var.isPresent())
-                            try {
-                                Thread.sleep(100);
-                            } catch (InterruptedException e) {}
-                        results.add(var.get());
-
-                        succDownload = crawler.getLoaded();
-                        toDownload = crawler.getToLoad();
-                        failDownload = crawler.getErrors();
-
-                        if(crawlingThread.isInterrupted())
-                            crawler.suspend();
-                    }
-                });
-                crawlingThread.setDaemon(true);
-                crawlingThread.start();
+                else {
+                    crawler.start();
+                    //un Crawler qualsiasi è letto da un thread che termina con il crawling
+                    Thread crawlingThread = new Thread(() -> {
+                        while (crawler.isRunning()) {
+                            Optional<CrawlerResult> var = crawler.get();
+                            if (var.isPresent() && var.get().uri != null)
+                                received(var.get());
+                            else if (!var.isPresent())
+                                //get non è bloccante
+                                try {
+                                    Thread.sleep(10);
+                                } catch (InterruptedException e) {
+                                    break;
+                                }
+                        }
+                    });
+                    crawlingThread.setDaemon(true);
+                    reader=crawlingThread;
+                    crawlingThread.start();
+                }
             }
         }
         else
             throw new IllegalStateException();
     }
 
+    /** Archivia un risultato del Crawler e lo consegna ai sottoscrittori o, se non
+     * ce ne sono, lo accoda per get. L'archiviazione attende solo il disco; la
+     * consegna non attende i sottoscrittori, che possono perdere il risultato
+     * come quelli del Crawler. */
+    private void received(CrawlerResult r) {
+        if(isCancelled())
+            return;
+        if(journal!=null)
+            try {
+                journal.result(r);
+            } catch(IOException e){
+                archiveFailed(e);
+            }
+        results.deliver(r);
+    }
+
+    /** Registra un errore dell'archivio e sospende il Crawler, così lo stato
+     * archiviato non resta indietro rispetto al crawling */
+    private void archiveFailed(IOException e) {
+        if(failure==null)
+            failure=e;
+        if(!crawler.isCancelled())
+            crawler.suspend();
+    }
+
+    /** Ritorna l'errore dell'archivio che ha fermato il crawling o null se non ce
+     * n'è stato. Dopo un errore il SiteCrawler non riparte con start; lo stato
+     * archiviato fino all'errore può essere ripreso con un nuovo SiteCrawler. Dopo
+     * la cancellazione ritorna anche l'errore nella chiusura dell'archivio.
+     * @return l'errore dell'archivio o null */
+    public IOException getFailure() {
+        return failure;
+    }
+
     /**
      * Sospende l'esecuzione del SiteCrawler. Se non è in esecuzione, ignora
      * l'invocazione. L'esecuzione può essere ripresa invocando start. Durante
      * la sospensione l'attività dovrebbe essere ridotta al minimo possibile
      * (eventuali thread dovrebbero essere terminati). Se è stata specificata
-     * una directory per l'archiviazione, lo stato del crawling è archiviato.
+     * una directory per l'archiviazione, lo stato del crawling è archiviato
+     * prima che il metodo ritorni, compresi i risultati dei download elaborati
+     * prima della sospensione.
      *
      * @throws IllegalStateException se il SiteCrawler è cancellato
      */
     @Override
     public void suspend() throws IllegalStateException{
         if(!isCancelled()){
-            if(crawler.isRunning()){
-                crawlingThread.interrupt();
-                if(dir!=null){
-                    Path file=dir.resolve("downloadData.dat");
-                    try(ObjectOutputStream output=new ObjectOutputStream(Files.newOutputStream(file))){
-                        Object[] state={dom,succDownload,toDownload,failDownload,results};
-                        output.writeObject(state);
-                    }catch(IOException e){
-                        System.out.println("Errore I/O");
-                    }
+            boolean running=crawler.isRunning();
+            //il SimpleCrawler ritorna quando la pipeline si è fermata, quindi quando
+            //l'ultimo risultato è stato passato all'archivio; lo attende anche se si
+            //è fermato da solo, così nessun risultato arriva dopo close
+            crawler.suspend();
+            Thread t=reader;
+            if(t!=null && t!=Thread.currentThread())
+                try {
+                    t.join();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            //il checkpoint è eseguito dal task di scrittura dell'archivio e scrive
+            //solo i record aggiunti dall'ultimo; si attende che finisca perché i
+            //thread dell'archivio sono daemon e, se il programma termina subito
+            //dopo, il checkpoint andrebbe perso
+            if(running && journal!=null){
+                try{
+                    journal.sync();
+                }catch(IOException e){
+                    archiveFailed(e);
                 }
             }
         }
@@ -190,6 +317,17 @@ public class SimpleSiteCrawler implements SiteCrawler{
     public void cancel() {
         suspend();
         crawler.cancel();
+        results.close();
+        synchronized(this) {
+            if(fetcher!=null)
+                fetcher.shutdown();
+        }
+        if(journal!=null)
+            try{
+                journal.close();
+            }catch(IOException e){
+                archiveFailed(e);
+            }
     }
 
     /**
@@ -203,13 +341,8 @@ public class SimpleSiteCrawler implements SiteCrawler{
     @Override
     public Optional<CrawlerResult> get() throws IllegalStateException{
         if(!crawler.isCancelled()){
-            if(crawler.isRunning()) {
-                while (results.isEmpty())
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {}
-                return Optional.of(results.poll());
-            }
+            if(crawler.isRunning())
+                return Optional.ofNullable(results.queue().poll());
             else
                 return Optional.empty();
         }
@@ -219,55 +352,144 @@ public class SimpleSiteCrawler implements SiteCrawler{
 
     /**
      * Ritorna il risultato del tentativo di scaricare la pagina che
-     * corrisponde all'URI dato.
+     * corrisponde all'URI dato. Se c'è un archivio il risultato è letto
+     * dall'archivio e la pagina è scaricata di nuovo solo se non vi è presente.
      *
      * @param uri un URI
      * @return il risultato del tentativo di scaricare la pagina
      * @throws IllegalArgumentException se uri non è nell'insieme degli URI
      *                                  scaricati né nell'insieme degli URI che hanno prodotto errori.
      * @throws IllegalStateException    se il SiteCrawler è cancellato
+     * @throws UncheckedIOException     se la lettura dell'archivio fallisce
      */
     @Override
     public CrawlerResult get(URI uri) throws IllegalArgumentException,IllegalStateException{
         if(!crawler.isCancelled()){
-            succDownload = crawler.getLoaded();
-            toDownload = crawler.getToLoad();
-            failDownload = crawler.getErrors();
+            if(!succDownload.contains(uri) && !failDownload.contains(uri))
+                throw new IllegalArgumentException();
+            //le pagine archiviate sono rilette senza accedere alla rete
+            if(journal!=null)
+                try {
+                    CrawlerResult res=journal.get(uri);
+                    if(res!=null)
+                        return res;
+                } catch(IOException e){
+                    //un indice o un log corrotto non deve passare per una pagina assente
+                    throw new UncheckedIOException(e);
+                }
+            return fetch(uri);
+        }
+        else
+            throw new IllegalStateException();
+    }
 
-            Set<URI> partialURIs=new HashSet<>(succDownload);
-            partialURIs.addAll(failDownload);
-            if(!partialURIs.contains(uri)){
-                Object[] state={crawler.getLoaded(),crawler.getToLoad(),crawler.getErrors()};
-                crawler.suspend();
-                crawler.getLoaded().clear();
-                crawler.getToLoad().clear();
-                crawler.getErrors().clear();
+    /** Scarica di nuovo la pagina dell'URI senza sospendere il Crawler del
+     * SiteCrawler e senza seguirne i link, attendendo al più FETCH_TIMEOUT secondi.
+     * @param uri  un URI
+     * @return il risultato del tentativo di scaricare la pagina */
+    private CrawlerResult fetch(URI uri) {
+        boolean linkPage=pageLink.test(uri);
+        Future<LoadResult> f=null;
+        LoadResult res;
+        try {
+            f=fetcher().submit(uri.toURL());
+            res=f.get(FETCH_TIMEOUT,TimeUnit.SECONDS);
+        } catch(ExecutionException e) {
+            Throwable c=e.getCause();
+            return new CrawlerResult(uri,linkPage,null,null,c instanceof Exception?(Exception)c:e);
+        } catch(InterruptedException|TimeoutException e) {
+            f.cancel(true);
+            if(e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            return new CrawlerResult(uri,linkPage,null,null,e);
+        } catch(MalformedURLException|IllegalArgumentException|IllegalStateException e) {
+            return new CrawlerResult(uri,linkPage,null,null,e);
+        }
+        if(res.exc!=null)
+            return new CrawlerResult(uri,linkPage,null,null,res.exc);
+        List<URI> links=null;
+        List<String> errRawLinks=null;
+        if(linkPage && res.parsed!=null) {
+            links=new ArrayList<>();
+            errRawLinks=new ArrayList<>();
+            for(String s:res.parsed.getLinks())
+                try {
+                    URI link=uri.resolve(URI.create(s));
+                    link.toURL();
+                    links.add(link);
+                } catch(Exception e) {
+                    errRawLinks.add(s);
+                }
+        }
+        return new CrawlerResult(uri,linkPage,links,errRawLinks,null);
+    }
 
-                crawler.add(uri);
-                crawler.start();
-                while(crawler.get().get().uri==null)
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {}
-                Optional<CrawlerResult> res=crawler.get();
-                crawler.suspend();
+    private synchronized AsyncLoader fetcher() {
+        if(fetcher==null)
+            fetcher=WebFactory.getAsyncLoader();
+        return fetcher;
+    }
 
-                crawler.getLoaded().addAll((Set<URI>)state[0]);
-                crawler.getToLoad().addAll((Set<URI>)state[1]);
-                crawler.getErrors().addAll((Set<URI>)state[2]);
+    /** Imposta la coda dei risultati in attesa di get. I risultati della coda
+     * corrente sono trasferiti nella nuova. Di default la coda tiene in memoria
+     * {@link SimpleCrawler#RESULTS} risultati e, quando è piena, scarta i nuovi
+     * ({@link ResultQueue.Overflow#DROP}), così un SiteCrawler di cui nessuno legge
+     * i risultati con get non si ferma. I risultati scartati sono comunque
+     * archiviati, se c'è un archivio, e ritornati da get(URI). Con
+     * {@link ResultQueue.Overflow#BLOCK} il crawling attende invece che siano
+     * letti.
+     * @param q  la nuova coda
+     * @throws IllegalStateException se il SiteCrawler è in esecuzione */
+    public void setResultQueue(ResultQueue q) {
+        if(crawler.isRunning())
+            throw new IllegalStateException();
+        results.setQueue(q);
+    }
 
-                succDownload = crawler.getLoaded();
-                toDownload = crawler.getToLoad();
-                failDownload = crawler.getErrors();
-                crawler.start();
+    /** Ritorna fino a max risultati già pronti con una sola sincronizzazione,
+     * attendendo al più il tempo dato che ne sia pronto almeno uno. Se il
+     * SiteCrawler non è in esecuzione ritorna solo i risultati già in coda, senza
+     * attendere.
+     * @param max  il numero massimo di risultati
+     * @param timeout  il tempo massimo di attesa del primo risultato
+     * @return i risultati nell'ordine in cui sono stati prodotti, possibilmente
+     * nessuno
+     * @throws IllegalArgumentException se max non è positivo
+     * @throws IllegalStateException se il SiteCrawler è cancellato */
+    public List<CrawlerResult> get(int max, Duration timeout) throws IllegalStateException {
+        if(max<=0)
+            throw new IllegalArgumentException();
+        if(isCancelled())
+            throw new IllegalStateException();
+        List<CrawlerResult> batch=new ArrayList<>(Math.min(max,SimpleCrawler.RESULTS));
+        results.queue().drainTo(batch,max,timeout,crawler::isRunning);
+        return batch;
+    }
 
-                return res.get();
-            }
-            else
-                throw new IllegalArgumentException();
-        }
-        else
+    /** Trasferisce nella collezione data tutti i risultati già pronti, senza
+     * attendere, con una sola sincronizzazione.
+     * @param c  la collezione in cui aggiungere i risultati
+     * @return il numero di risultati trasferiti
+     * @throws IllegalStateException se il SiteCrawler è cancellato */
+    public int drainTo(Collection<? super CrawlerResult> c) throws IllegalStateException {
+        if(isCancelled())
             throw new IllegalStateException();
+        return results.queue().drainTo(c,Integer.MAX_VALUE);
+    }
+
+    /** Sottoscrive ai risultati del SiteCrawler, che sono consegnati al
+     * sottoscrittore appena sono prodotti e archiviati. Come per
+     * {@link SimpleCrawler#subscribe(Flow.Subscriber)}, un sottoscrittore lento non
+     * ferma il crawling: se il suo buffer è pieno, un risultato lo attende al più
+     * {@link SimpleCrawler#DELIVERY_TIMEOUT} secondi, dopo i quali il
+     * sottoscrittore non lo riceve. I risultati sono comunque archiviati, se c'è un
+     * archivio, e ritornati da get(URI). Finché ci sono sottoscrittori i risultati
+     * non sono ritornati da {@link SimpleSiteCrawler#get()}. Quando il SiteCrawler
+     * è cancellato i sottoscrittori ricevono onComplete.
+     * @param s  il sottoscrittore */
+    @Override
+    public void subscribe(Flow.Subscriber<? super CrawlerResult> s) {
+        results.subscribe(s);
     }
 
     /**
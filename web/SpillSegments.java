@@ -0,0 +1,152 @@
+package wsa.web;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+
+/** I file di segmento su cui una coda FIFO in memoria riversa gli elementi che non
+ * vi stanno, usati da {@link SpillingFrontier} e da {@link ResultQueue}. Gli
+ * elementi sono scritti in append su segmenti di al più segmentSize elementi e
+ * riletti nello stesso ordine in sequenza, con I/O bufferizzato. Un segmento è
+ * cancellato appena è stato riletto completamente. Il formato degli elementi è
+ * dato dalle sottoclassi, che possono tenere uno stato per segmento (ad esempio
+ * un dizionario) azzerandolo in {@link SpillSegments#writing()} e
+ * {@link SpillSegments#reading()}. Gli errori di I/O sono lanciati come
+ * {@link UncheckedIOException}. Non è thread-safe: è usato con il lock della coda
+ * che lo contiene.
+ * @param <T>  il tipo degli elementi */
+abstract class SpillSegments<T> {
+    private final String name;
+    private final int segmentSize;
+    private Path dir;
+    //la directory se è temporanea, creata alla prima scrittura ed eliminata da clear
+    private Path tempDir;
+    //segmenti completi in attesa di essere riletti, dal più vecchio
+    private final ArrayDeque<Segment> segments=new ArrayDeque<>();
+    private Path writing, reading;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private int written, spilled, unread, nextSegment;
+
+    /** Un file di segmento completo con il numero di elementi che contiene */
+    private static class Segment {
+        final Path path;
+        final int size;
+
+        Segment(Path p, int n) {
+            path=p;
+            size=n;
+        }
+    }
+
+    /** Crea i segmenti, che si chiamano name-N.seg
+     * @param dir  la directory dei segmenti, creata se non esiste, o null per una
+     *             directory temporanea
+     * @param name  il prefisso dei nomi dei segmenti
+     * @param segmentSize  il numero massimo di elementi di un segmento */
+    SpillSegments(Path dir, String name, int segmentSize) {
+        this.dir=dir;
+        this.name=name;
+        this.segmentSize=segmentSize;
+    }
+
+    /** Scrive un elemento nel segmento in scrittura */
+    abstract void write(DataOutputStream out, T e) throws IOException;
+
+    /** Legge il prossimo elemento del segmento in lettura */
+    abstract T read(DataInputStream in) throws IOException;
+
+    /** Invocato prima di scrivere il primo elemento di un nuovo segmento */
+    void writing() {}
+
+    /** Invocato prima di leggere il primo elemento di un segmento */
+    void reading() {}
+
+    /** Accoda un elemento all'ultimo segmento */
+    void append(T e) {
+        try {
+            if(out==null) {
+                if(dir==null)
+                    dir=tempDir=Files.createTempDirectory("wsa-"+name);
+                writing=Files.createDirectories(dir).resolve(name+"-"+(nextSegment++)+".seg");
+                out=new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(writing),1<<16));
+                written=0;
+                writing();
+            }
+            write(out,e);
+            spilled++;
+            if(++written>=segmentSize)
+                closeSegment();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /** Rilegge il più vecchio elemento su disco
+     * @return l'elemento o null se non ce ne sono */
+    T next() {
+        try {
+            while(spilled>0) {
+                if(in==null) {
+                    if(segments.isEmpty())
+                        //l'unico segmento con elementi è quello in scrittura
+                        closeSegment();
+                    Segment seg=segments.poll();
+                    reading=seg.path;
+                    in=new DataInputStream(new BufferedInputStream(Files.newInputStream(reading),1<<16));
+                    unread=seg.size;
+                    reading();
+                }
+                if(unread==0) {
+                    in.close();
+                    in=null;
+                    Files.deleteIfExists(reading);
+                    continue;
+                }
+                T e=read(in);
+                unread--;
+                spilled--;
+                return e;
+            }
+            return null;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /** Ritorna il numero di elementi su disco */
+    int size() {
+        return spilled;
+    }
+
+    /** Elimina i segmenti e, se è temporanea, la directory */
+    void clear() {
+        try {
+            if(out!=null)
+                closeSegment();
+            if(in!=null) {
+                in.close();
+                in=null;
+                Files.deleteIfExists(reading);
+            }
+            for(Segment seg:segments)
+                Files.deleteIfExists(seg.path);
+            segments.clear();
+            spilled=0;
+            unread=0;
+            if(tempDir!=null) {
+                Files.deleteIfExists(tempDir);
+                dir=tempDir=null;
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        out.close();
+        out=null;
+        segments.add(new Segment(writing,written));
+    }
+}
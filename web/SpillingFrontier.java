@@ -0,0 +1,115 @@
+package wsa.web;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+
+/** Frontiera FIFO per crawl più grandi della memoria: solo la testa della coda, al
+ * più capacity URI, è in memoria. Gli altri URI sono accodati a file di segmento
+ * in una directory locale, scritti in append e riletti in sequenza con I/O
+ * bufferizzato, un blocco alla volta. Un segmento è cancellato appena è stato
+ * riletto completamente. La coda della frontiera è così limitata dallo spazio su
+ * disco invece che dallo heap. Gli URI della frontiera restano però nell'indice
+ * del Crawler ({@link URIStates}), che cresce con il numero di URI incontrati: in
+ * modalità compatta occupa l'impronta e la stringa di ognuno. Gli errori di I/O
+ * sono lanciati come
+ * {@link UncheckedIOException}. Quando non serve più va chiusa con
+ * {@link SpillingFrontier#close()}, che elimina i segmenti. */
+public class SpillingFrontier implements Frontier, Closeable {
+    private static final int SEGMENT_ENTRIES=1<<16;
+
+    private final Path dir;
+    //se la directory è temporanea, eliminata da close
+    private final boolean temp;
+    private final int capacity;
+    private final ArrayDeque<Entry> head=new ArrayDeque<>();
+    private final SpillSegments<Entry> spill;
+
+    /** Crea una frontiera che scrive i segmenti in una directory temporanea
+     * @param capacity  numero massimo di URI in memoria
+     * @throws IOException se non è possibile creare la directory */
+    public SpillingFrontier(int capacity) throws IOException {
+        this(Files.createTempDirectory("wsa-frontier"),capacity,true);
+    }
+
+    /** Crea una frontiera che scrive i segmenti nella directory data
+     * @param dir  la directory dei segmenti, creata se non esiste
+     * @param capacity  numero massimo di URI in memoria
+     * @throws IllegalArgumentException se capacity non è positivo
+     * @throws IOException se non è possibile creare la directory */
+    public SpillingFrontier(Path dir, int capacity) throws IOException {
+        this(dir,capacity,false);
+    }
+
+    private SpillingFrontier(Path dir, int capacity, boolean temp) throws IOException {
+        if(capacity<=0)
+            throw new IllegalArgumentException();
+        this.dir=Files.createDirectories(dir);
+        this.capacity=capacity;
+        this.temp=temp;
+        spill=new SpillSegments<Entry>(this.dir,"frontier",SEGMENT_ENTRIES) {
+            @Override
+            void write(DataOutputStream out, Entry e) throws IOException {
+                byte[] bytes=e.uri.toString().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(e.depth);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            @Override
+            Entry read(DataInputStream in) throws IOException {
+                int depth=in.readInt();
+                byte[] bytes=new byte[in.readInt()];
+                in.readFully(bytes);
+                return new Entry(URI.create(new String(bytes,StandardCharsets.UTF_8)),depth);
+            }
+        };
+    }
+
+    @Override
+    public synchronized void offer(Entry e) {
+        //se ci sono URI su disco i nuovi vanno dopo di loro per mantenere l'ordine
+        if(spill.size()==0 && head.size()<capacity)
+            head.add(e);
+        else
+            spill.append(e);
+    }
+
+    @Override
+    public synchronized Entry poll() {
+        if(head.isEmpty())
+            //rilegge dal disco fino a capacity URI, nell'ordine in cui sono stati scritti
+            while(head.size()<capacity && spill.size()>0)
+                head.add(spill.next());
+        return head.poll();
+    }
+
+    @Override
+    public synchronized int size() {
+        return head.size()+spill.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        head.clear();
+        spill.clear();
+    }
+
+    /** Svuota la frontiera eliminandone i segmenti e, se è temporanea, la
+     * directory. Dopo la chiusura la frontiera può essere ancora usata solo se la
+     * directory non era temporanea.
+     * @throws IOException se si verifica un errore di I/O */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            clear();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        if(temp)
+            Files.deleteIfExists(dir);
+    }
+}
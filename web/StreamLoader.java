@@ -0,0 +1,99 @@
+package wsa.web;
+
+import org.w3c.dom.Document;
+import wsa.web.html.HTMLParser;
+import wsa.web.html.ParsedHTML;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/** Un Loader alternativo a quello di default che non usa una WebEngine: scarica
+ * la pagina tramite {@link java.net.URLConnection} e ne costruisce l'albero di
+ * parsing con {@link wsa.web.html.HTMLParser} mentre la legge. Non esegue
+ * JavaScript e non carica risorse secondarie, ma non passa dal JavaFX
+ * Application Thread e quindi più StreamLoader lavorano in parallelo. Si usa
+ * impostando la factory con {@code WebFactory.setLoaderFactory(StreamLoader::new)}. */
+public class StreamLoader implements Loader{
+    /**
+     * Ritorna il risultato del tentativo di scaricare la pagina specificata. È
+     * bloccante, finchè l'operazione non è conclusa non ritorna.
+     *
+     * @param url l'URL di una pagina web
+     * @return il risultato del tentativo di scaricare la pagina
+     */
+    @Override
+    public LoadResult load(URL url) {
+        try{
+            URLConnection conn=open(url);
+            try(Reader in=new BufferedReader(new InputStreamReader(conn.getInputStream(),charset(conn)))){
+                Document doc=HTMLParser.parse(in);
+                return new LoadResult(url,new ParsedHTML(doc),null);
+            }
+        }catch(Exception e){
+            return new LoadResult(url,null,e);
+        }
+    }
+
+    /**
+     * Ritorna null se l'URL è scaricabile senza errori, altrimenti ritorna
+     * un'eccezione che riporta l'errore.
+     *
+     * @param url un URL
+     * @return null se l'URL è scaricabile senza errori, altrimenti
+     * l'eccezione
+     */
+    @Override
+    public Exception check(URL url) {
+        Exception ex=null;
+        try{
+            URLConnection conn=open(url);
+            if(conn instanceof HttpURLConnection)
+                ((HttpURLConnection)conn).disconnect();
+            else
+                conn.getInputStream().close();
+        }catch(Exception e){
+            ex=e;
+        }
+        return ex;
+    }
+
+    /** Apre la connessione con gli stessi header e timeout di {@link SimpleLoader#check(URL)}.
+     * Per HTTP, uno status di errore è riportato come eccezione. */
+    static URLConnection open(URL url) throws IOException {
+        URLConnection conn=url.openConnection();
+        conn.setRequestProperty("User-Agent","Mozilla/5.0");
+        conn.setRequestProperty("Accept", "text/html;q=1.0,*;q=0");
+        conn.setRequestProperty("Accept-Encoding", "identity;q=1.0,*;q=0");
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(10000);
+        conn.connect();
+        if(conn instanceof HttpURLConnection) {
+            int code=((HttpURLConnection)conn).getResponseCode();
+            if(code>=400)
+                throw new IOException("HTTP "+code+" per "+url);
+        }
+        return conn;
+    }
+
+    /** Ritorna il charset dichiarato nel Content-Type o UTF-8 se assente o non
+     * supportato */
+    static Charset charset(URLConnection conn) {
+        String type=conn.getContentType();
+        if(type!=null)
+            for(String p:type.split(";")) {
+                p=p.trim();
+                if(p.regionMatches(true,0,"charset=",0,8))
+                    try {
+                        return Charset.forName(p.substring(8).replace("\"","").trim());
+                    } catch (Exception e) {}
+            }
+        return StandardCharsets.UTF_8;
+    }
+}
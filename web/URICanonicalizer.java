@@ -0,0 +1,100 @@
+package wsa.web;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/** Riduce gli URI a una forma canonica, così URI che indicano la stessa pagina
+ * (ad es. http://Host/a#x, http://host/a, http://host:80/a e http://host/./a) sono
+ * riconosciuti come duplicati. Schema e host sono portati in minuscolo, la porta di
+ * default dello schema e il fragment sono eliminati e il path è normalizzato. In
+ * più si può chiedere di ordinare i parametri della query e di eliminarne alcuni
+ * (ad es. gli identificatori di sessione). Gli URI opachi (mailto:, ecc.) e quelli
+ * non gerarchici sono ritornati invariati. */
+public class URICanonicalizer implements UnaryOperator<URI> {
+    private final boolean sortQuery;
+    private final Predicate<String> stripParam;
+
+    /** Crea un canonicalizzatore che non modifica la query */
+    public URICanonicalizer() {
+        this(false,null);
+    }
+
+    /** Crea un canonicalizzatore
+     * @param sortQuery  se ordinare i parametri della query
+     * @param stripParam  i nomi dei parametri della query da eliminare o null */
+    public URICanonicalizer(boolean sortQuery, Predicate<String> stripParam) {
+        this.sortQuery=sortQuery;
+        this.stripParam=stripParam;
+    }
+
+    /** Ritorna la forma canonica dell'URI
+     * @param uri  un URI assoluto
+     * @return la forma canonica o uri stesso se non è gerarchico o assoluto */
+    @Override
+    public URI apply(URI uri) {
+        if(uri.isOpaque() || uri.getScheme()==null)
+            return uri;
+        String scheme=uri.getScheme().toLowerCase();
+        StringBuilder sb=new StringBuilder(scheme).append(':');
+        if(uri.getRawAuthority()!=null) {
+            sb.append("//");
+            if(uri.getHost()==null)
+                //authority non analizzabile come server
+                sb.append(uri.getRawAuthority());
+            else {
+                if(uri.getRawUserInfo()!=null)
+                    sb.append(uri.getRawUserInfo()).append('@');
+                sb.append(uri.getHost().toLowerCase());
+                int port=uri.getPort();
+                if(port!=-1 && port!=defaultPort(scheme))
+                    sb.append(':').append(port);
+            }
+        }
+        URI norm=uri.normalize();
+        String path=norm.getRawPath();
+        if((path==null || path.isEmpty()) && uri.getRawAuthority()!=null)
+            path="/";
+        if(path!=null)
+            sb.append(path);
+        String query=query(uri.getRawQuery());
+        if(query!=null)
+            sb.append('?').append(query);
+        try {
+            return URI.create(sb.toString());
+        } catch (IllegalArgumentException e) {
+            return uri;
+        }
+    }
+
+    private String query(String raw) {
+        if(raw==null || (!sortQuery && stripParam==null))
+            return raw;
+        List<String> params=new ArrayList<>();
+        for(String p:raw.split("&")) {
+            if(p.isEmpty())
+                continue;
+            int eq=p.indexOf('=');
+            if(stripParam!=null && stripParam.test(eq<0?p:p.substring(0,eq)))
+                continue;
+            params.add(p);
+        }
+        if(params.isEmpty())
+            return null;
+        if(sortQuery)
+            Collections.sort(params);
+        return String.join("&",params);
+    }
+
+    private static int defaultPort(String scheme) {
+        switch (scheme) {
+            case "http": return 80;
+            case "https": return 443;
+            case "ftp": return 21;
+            default: return -1;
+        }
+    }
+}
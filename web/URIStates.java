@@ -0,0 +1,262 @@
+package wsa.web;
+
+import java.net.URI;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Indice concorrente dello stato di ogni URI incontrato da un Crawler. Ogni URI
+ * è in uno solo dei tre stati e il controllo dei duplicati costa O(1) qualunque sia
+ * il numero di URI. Le transizioni di stato sono atomiche. Gli insiemi ritornati da
+ * {@link URIStates#view(State)} sono viste dell'indice che possono essere lette e
+ * iterate mentre il Crawler lo modifica.
+ * <br>
+ * In modalità compatta gli URI non sono tenuti come oggetti {@link URI} ma in un
+ * {@link FingerprintStore}, come impronta e stringa UTF-8, così un crawl di decine
+ * di milioni di URI sta in poca memoria. La memoria cresce comunque linearmente con
+ * il numero di URI incontrati in qualsiasi stato, compresi quelli da scaricare:
+ * una frontiera su disco ({@link SpillingFrontier}) toglie dallo heap solo la coda
+ * degli URI da scaricare, non le loro voci nell'indice, che servono al controllo
+ * dei duplicati. Fuori dallo heap ({@link URIStates#URIStates(boolean, boolean)})
+ * l'indice non pesa sul garbage collector ma occupa la stessa memoria. */
+public class URIStates {
+    /** Lo stato di un URI */
+    public enum State { LOADED, TO_LOAD, ERROR }
+
+    private final ConcurrentHashMap<URI,State> states=new ConcurrentHashMap<>();
+    private final AtomicInteger[] counts=new AtomicInteger[State.values().length];
+    private final Set<URI>[] views;
+    //null se non è in modalità compatta
+    private final FingerprintStore seen;
+
+    public URIStates() {
+        this(false,false);
+    }
+
+    /** Crea un indice vuoto, eventualmente in modalità compatta
+     * @param compact  se tenere gli URI in un {@link FingerprintStore}
+     * @param offHeap  se il FingerprintStore deve stare fuori dallo heap */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    public URIStates(boolean compact, boolean offHeap) {
+        seen=compact?new FingerprintStore(State.values().length,offHeap):null;
+        views=new Set[State.values().length];
+        for(State s:State.values()) {
+            counts[s.ordinal()]=new AtomicInteger();
+            views[s.ordinal()]=new View(s);
+        }
+    }
+
+    /** Aggiunge l'URI con stato TO_LOAD se non è già presente in un qualsiasi stato
+     * @param uri  un URI
+     * @return true se l'URI è stato aggiunto */
+    public boolean add(URI uri) {
+        return add(uri,State.TO_LOAD);
+    }
+
+    /** Aggiunge l'URI con lo stato dato se non è già presente in un qualsiasi stato
+     * @param uri  un URI
+     * @param s  lo stato
+     * @return true se l'URI è stato aggiunto */
+    public boolean add(URI uri, State s) {
+        if(seen!=null)
+            synchronized (this) {
+                if(get(uri)!=null)
+                    return false;
+                put(uri,s);
+                return true;
+            }
+        if(states.putIfAbsent(uri,s)!=null)
+            return false;
+        counts[s.ordinal()].incrementAndGet();
+        return true;
+    }
+
+    /** Porta l'URI dallo stato from allo stato to, solo se è nello stato from
+     * @param uri  un URI
+     * @param from  lo stato atteso
+     * @param to  il nuovo stato
+     * @return true se la transizione è avvenuta */
+    public boolean transition(URI uri, State from, State to) {
+        if(seen!=null)
+            synchronized (this) {
+                if(get(uri)!=from)
+                    return false;
+                put(uri,to);
+                return true;
+            }
+        if(!states.replace(uri,from,to))
+            return false;
+        counts[from.ordinal()].decrementAndGet();
+        counts[to.ordinal()].incrementAndGet();
+        return true;
+    }
+
+    /** Imposta lo stato dell'URI qualunque sia lo stato attuale
+     * @param uri  un URI
+     * @param s  il nuovo stato */
+    public void set(URI uri, State s) {
+        if(seen!=null)
+            synchronized (this) {
+                put(uri,s);
+                return;
+            }
+        State old=states.put(uri,s);
+        if(old!=null)
+            counts[old.ordinal()].decrementAndGet();
+        counts[s.ordinal()].incrementAndGet();
+    }
+
+    /** Ritorna lo stato dell'URI o null se non è presente
+     * @param uri  un URI
+     * @return lo stato o null */
+    public State get(URI uri) {
+        if(seen!=null) {
+            int i=seen.get(uri);
+            return i<0?null:State.values()[i];
+        }
+        return states.get(uri);
+    }
+
+    /** Ritorna true se l'URI è presente in un qualsiasi stato
+     * @param uri  un URI
+     * @return true se l'URI è presente */
+    public boolean contains(URI uri) {
+        return get(uri)!=null;
+    }
+
+    /** Ritorna il numero di URI nello stato dato, in tempo costante
+     * @param s  uno stato
+     * @return il numero di URI nello stato s */
+    public int count(State s) {
+        if(seen!=null)
+            return seen.count(s.ordinal());
+        return counts[s.ordinal()].get();
+    }
+
+    /** Ritorna la vista degli URI nello stato dato. Aggiungere un URI alla vista
+     * lo porta nello stato s, rimuoverlo lo toglie dall'indice se è nello stato s.
+     * L'iterazione non lancia mai ConcurrentModificationException.
+     * @param s  uno stato
+     * @return la vista degli URI nello stato s */
+    public Set<URI> view(State s) {
+        return views[s.ordinal()];
+    }
+
+    /** Aggiunge o cambia lo stato in modalità compatta, con il lock tenuto */
+    private void put(URI uri, State s) {
+        seen.put(uri,s.ordinal());
+    }
+
+    private boolean remove(URI uri, State s) {
+        if(seen!=null)
+            synchronized (this) {
+                return seen.remove(uri,s.ordinal());
+            }
+        if(!states.remove(uri,s))
+            return false;
+        counts[s.ordinal()].decrementAndGet();
+        return true;
+    }
+
+    private class View extends AbstractSet<URI> {
+        private final State state;
+
+        View(State s) {
+            state = s;
+        }
+
+        @Override
+        public int size() {
+            return Math.max(0,count(state));
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size()==0;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof URI && get((URI)o)==state;
+        }
+
+        @Override
+        public boolean add(URI uri) {
+            if(get(uri)==state)
+                return false;
+            set(uri,state);
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return o instanceof URI && URIStates.this.remove((URI)o,state);
+        }
+
+        @Override
+        public Iterator<URI> iterator() {
+            if(seen!=null)
+                return compactIterator();
+            Iterator<Map.Entry<URI,State>> it=states.entrySet().iterator();
+            return new Iterator<URI>() {
+                private URI next, last;
+
+                @Override
+                public boolean hasNext() {
+                    while(next==null && it.hasNext()) {
+                        Map.Entry<URI,State> e=it.next();
+                        if(e.getValue()==state)
+                            next=e.getKey();
+                    }
+                    return next!=null;
+                }
+
+                @Override
+                public URI next() {
+                    if(!hasNext())
+                        throw new NoSuchElementException();
+                    last=next;
+                    next=null;
+                    return last;
+                }
+
+                @Override
+                public void remove() {
+                    if(last==null)
+                        throw new IllegalStateException();
+                    URIStates.this.remove(last,state);
+                    last=null;
+                }
+            };
+        }
+
+        private Iterator<URI> compactIterator() {
+            Iterator<URI> it=seen.iterator(state.ordinal());
+            return new Iterator<URI>() {
+                private URI last;
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public URI next() {
+                    return last=it.next();
+                }
+
+                @Override
+                public void remove() {
+                    if(last==null)
+                        throw new IllegalStateException();
+                    URIStates.this.remove(last,state);
+                    last=null;
+                }
+            };
+        }
+    }
+}
@@ -22,6 +22,8 @@ import java.util.function.Predicate;
  * {@link wsa.web.WebFactory#getCrawler(Collection, Collection, Collection, Predicate)}. */
 public class WebFactory {
     private static LoaderFactory loadFactory=null;
+    private static AsyncLoaderFactory asyncFactory=null;
+    private static CrawlerFactory crawlerFactory=null;
 
     /** Imposta la factory per creare {@link wsa.web.Loader}. Dopo l'impostazione
      * della factory con questo metodo, il metodo {@link WebFactory#getLoader()} deve
@@ -65,11 +67,37 @@ public class WebFactory {
         return loadFactory==null?new SimpleLoader():loadFactory.newInstance();
     }
 
+    /** Imposta la factory per creare {@link wsa.web.AsyncLoader}, ad esempio
+     * {@code HttpAsyncLoader::new} per scaricare con I/O non bloccante. Dopo
+     * l'impostazione il metodo {@link WebFactory#getAsyncLoader()} crea i loader
+     * asincroni solamente tramite la factory impostata, che può anche non usare i
+     * {@link wsa.web.Loader} di {@link WebFactory#getLoader()}. Con null si torna
+     * all'implementazione di default.
+     * @param alf  factory per AsyncLoader o null */
+    public static void setAsyncLoaderFactory(AsyncLoaderFactory alf) {
+        asyncFactory=alf;
+    }
+
     /** Ritorna un nuovo loader asincrono che per scaricare le pagine usa
      * esclusivamente {@link wsa.web.Loader} forniti da {@link wsa.web.WebFactory#getLoader()}.
+     * Se è stata impostata una factory con
+     * {@link WebFactory#setAsyncLoaderFactory(AsyncLoaderFactory)}, il loader è
+     * creato tramite quella.
      * @return un nuovo loader asincrono. */
     public static AsyncLoader getAsyncLoader() {
-        return new SimpleAsyncLoader();
+        return asyncFactory==null?new SimpleAsyncLoader():asyncFactory.newInstance();
+    }
+
+    /** Imposta la factory per creare {@link wsa.web.Crawler}, ad esempio per creare
+     * {@link SimpleCrawler} con un indice degli URI in modalità compatta:
+     * {@code (l, t, e, p) -> new SimpleCrawler(l, t, e, p, SimpleCrawler.WINDOW, new URIStates(true, false))}.
+     * Dopo l'impostazione il metodo
+     * {@link WebFactory#getCrawler(Collection, Collection, Collection, Predicate)}
+     * crea i Crawler solamente tramite la factory impostata. Con null si torna
+     * all'implementazione di default.
+     * @param cf  factory per Crawler o null */
+    public static void setCrawlerFactory(CrawlerFactory cf) {
+        crawlerFactory=cf;
     }
 
     /** Ritorna un {@link wsa.web.Crawler} che inizia con gli specificati insiemi di URI.
@@ -82,6 +110,8 @@ public class WebFactory {
      *                  relative pagine sono usati per continuare il crawling
      * @return un Crawler con le proprietà specificate */
     public static Crawler getCrawler(Collection<URI> loaded, Collection<URI> toLoad, Collection<URI> errs, Predicate<URI> pageLink) {
+        if(crawlerFactory!=null)
+            return crawlerFactory.newInstance(loaded,toLoad,errs,pageLink);
         return new SimpleCrawler(loaded,toLoad,errs,pageLink);
     }
 
@@ -0,0 +1,325 @@
+package wsa.web.html;
+
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Parser HTML in streaming che costruisce un {@link org.w3c.dom.Document} leggendo
+ * la pagina un carattere alla volta, senza mai tenerla tutta in memoria e senza
+ * eseguire JavaScript né caricare risorse secondarie. Il documento prodotto può
+ * essere usato per costruire un {@link ParsedHTML}. Il parser è tollerante: tag
+ * non chiusi, chiusure spurie e attributi malformati non causano errori. Ogni
+ * istanza è usata da un solo thread. */
+public class HTMLParser {
+    private static final Set<String> VOID=new HashSet<>(Arrays.asList("area","base","br",
+            "col","embed","hr","img","input","keygen","link","meta","param","source","track","wbr"));
+    private static final Set<String> RAW=new HashSet<>(Arrays.asList("script","style"));
+    private static final Set<String> RCDATA=new HashSet<>(Arrays.asList("textarea","title"));
+    private static final Set<String> AUTOCLOSE=new HashSet<>(Arrays.asList("p","li","option",
+            "tr","td","th","dt","dd"));
+    private static final Map<String,String> ENTITIES=new HashMap<>();
+    //profondità massima dell'albero, come nei browser: gli elementi più profondi
+    //sono aggiunti al genitore corrente invece di essere annidati
+    private static final int MAX_DEPTH=512;
+    static {
+        ENTITIES.put("amp","&");
+        ENTITIES.put("lt","<");
+        ENTITIES.put("gt",">");
+        ENTITIES.put("quot","\"");
+        ENTITIES.put("apos","'");
+        ENTITIES.put("nbsp"," ");
+    }
+
+    private final Reader in;
+    private int peeked=-2;
+    private Document doc;
+    private Deque<Element> stack;
+
+    private HTMLParser(Reader in){
+        this.in=in;
+    }
+
+    /** Legge e analizza l'intera pagina dal Reader dato. Il Reader non è chiuso.
+     * @param in  il Reader da cui leggere la pagina, è bene che sia bufferizzato
+     * @return il documento con radice l'elemento html (mai null)
+     * @throws IOException se accade un errore di lettura */
+    public static Document parse(Reader in) throws IOException {
+        return new HTMLParser(in).run();
+    }
+
+    private Document run() throws IOException {
+        try {
+            doc=DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e);
+        }
+        Element root=doc.createElement("html");
+        doc.appendChild(root);
+        stack=new ArrayDeque<>();
+        stack.push(root);
+
+        StringBuilder text=new StringBuilder();
+        int c;
+        while((c=next())!=-1) {
+            if(c=='<') {
+                int p=peek();
+                if(p=='!' || p=='?' || p=='/' || Character.isLetter(p)) {
+                    flushText(text);
+                    tag();
+                    continue;
+                }
+            }
+            text.append((char)c);
+        }
+        flushText(text);
+        return doc;
+    }
+
+    /** Analizza un tag, il carattere '<' è già stato letto */
+    private void tag() throws IOException {
+        int c=next();
+        if(c=='!') {
+            if(peek()=='-') {
+                next();
+                if(peek()=='-') {
+                    next();
+                    skipPast("-->");
+                    return;
+                }
+            }
+            skipPast(">");
+        }
+        else if(c=='?')
+            skipPast(">");
+        else if(c=='/') {
+            String name=readName();
+            skipPast(">");
+            endTag(name);
+        }
+        else
+            startTag((char)c+readName());
+    }
+
+    private void startTag(String name) throws IOException {
+        name=name.toLowerCase();
+        Map<String,String> attrs=new HashMap<>();
+        boolean selfClosing=false;
+        int c;
+        while(true) {
+            skipSpaces();
+            c=peek();
+            if(c==-1)
+                break;
+            if(c=='>') {
+                next();
+                break;
+            }
+            if(c=='/') {
+                next();
+                if(peek()=='>') {
+                    next();
+                    selfClosing=true;
+                    break;
+                }
+                continue;
+            }
+            String attr=readName().toLowerCase();
+            if(attr.isEmpty()) {
+                next();
+                continue;
+            }
+            skipSpaces();
+            String value="";
+            if(peek()=='=') {
+                next();
+                skipSpaces();
+                value=decode(readValue());
+            }
+            attrs.putIfAbsent(attr,value);
+        }
+
+        if(name.equals("html")) {
+            for(Map.Entry<String,String> a:attrs.entrySet())
+                setAttribute(stack.getLast(),a.getKey(),a.getValue());
+            return;
+        }
+        Element el;
+        try {
+            el=doc.createElement(name);
+        } catch (DOMException e) {
+            return;
+        }
+        for(Map.Entry<String,String> a:attrs.entrySet())
+            setAttribute(el,a.getKey(),a.getValue());
+
+        if(AUTOCLOSE.contains(name) && stack.size()>1) {
+            String top=stack.peek().getTagName();
+            if(top.equals(name) || (name.equals("td") || name.equals("th")) && (top.equals("td") || top.equals("th")))
+                stack.pop();
+        }
+        stack.peek().appendChild(el);
+        if(selfClosing || VOID.contains(name))
+            return;
+        if(RAW.contains(name) || RCDATA.contains(name)) {
+            String content=readRaw(name);
+            if(!content.isEmpty())
+                el.appendChild(doc.createTextNode(RCDATA.contains(name)?decode(content):content));
+            return;
+        }
+        if(stack.size()<MAX_DEPTH)
+            stack.push(el);
+    }
+
+    private void endTag(String name) {
+        name=name.toLowerCase();
+        for(Element e:stack) {
+            if(e==stack.getLast())
+                return;
+            if(e.getTagName().equals(name)) {
+                while(stack.pop()!=e);
+                return;
+            }
+        }
+    }
+
+    private void setAttribute(Element el, String name, String value) {
+        try {
+            el.setAttribute(name,value);
+        } catch (DOMException e) {}
+    }
+
+    private void flushText(StringBuilder text) {
+        if(text.length()>0) {
+            stack.peek().appendChild(doc.createTextNode(decode(text.toString())));
+            text.setLength(0);
+        }
+    }
+
+    /** Legge il contenuto di un elemento script, style, textarea o title fino
+     * al relativo tag di chiusura, che è consumato */
+    private String readRaw(String name) throws IOException {
+        StringBuilder sb=new StringBuilder();
+        String end="</"+name;
+        int c;
+        while((c=next())!=-1) {
+            sb.append((char)c);
+            int start=sb.length()-end.length();
+            if(c==end.charAt(end.length()-1) || Character.toLowerCase(c)==end.charAt(end.length()-1))
+                if(start>=0 && sb.substring(start).toLowerCase().equals(end)) {
+                    sb.setLength(start);
+                    skipPast(">");
+                    break;
+                }
+        }
+        return sb.toString();
+    }
+
+    private String readName() throws IOException {
+        StringBuilder sb=new StringBuilder();
+        int c;
+        while((c=peek())!=-1 && !Character.isWhitespace(c) && c!='>' && c!='/' && c!='=' && c!='<') {
+            sb.append((char)c);
+            next();
+        }
+        return sb.toString();
+    }
+
+    private String readValue() throws IOException {
+        StringBuilder sb=new StringBuilder();
+        int q=peek();
+        if(q=='"' || q=='\'') {
+            next();
+            int c;
+            while((c=next())!=-1 && c!=q)
+                sb.append((char)c);
+        }
+        else {
+            int c;
+            while((c=peek())!=-1 && !Character.isWhitespace(c) && c!='>') {
+                sb.append((char)c);
+                next();
+            }
+        }
+        return sb.toString();
+    }
+
+    private void skipSpaces() throws IOException {
+        while(peek()!=-1 && Character.isWhitespace(peek()))
+            next();
+    }
+
+    /** Consuma i caratteri fino alla prima occorrenza di end compresa */
+    private void skipPast(String end) throws IOException {
+        int matched=0, c;
+        while(matched<end.length() && (c=next())!=-1) {
+            if(c==end.charAt(matched))
+                matched++;
+            else
+                matched=c==end.charAt(0)?1:0;
+        }
+    }
+
+    private int peek() throws IOException {
+        if(peeked==-2)
+            peeked=in.read();
+        return peeked;
+    }
+
+    private int next() throws IOException {
+        int c=peek();
+        peeked=-2;
+        return c;
+    }
+
+    /** Sostituisce i riferimenti a caratteri (&amp;amp;, &amp;#39;, &amp;#x27;, ecc.)
+     * con i caratteri corrispondenti. I riferimenti sconosciuti sono lasciati
+     * invariati. */
+    static String decode(String s) {
+        int amp=s.indexOf('&');
+        if(amp<0)
+            return s;
+        StringBuilder sb=new StringBuilder(s.length());
+        sb.append(s,0,amp);
+        int i=amp;
+        while(i<s.length()) {
+            char c=s.charAt(i);
+            if(c=='&') {
+                int semi=s.indexOf(';',i);
+                if(semi>i+1 && semi-i<=10) {
+                    String ent=s.substring(i+1,semi);
+                    String rep=null;
+                    if(ent.charAt(0)=='#') {
+                        try {
+                            int cp=ent.length()>1 && (ent.charAt(1)=='x' || ent.charAt(1)=='X')?
+                                    Integer.parseInt(ent.substring(2),16):Integer.parseInt(ent.substring(1));
+                            if(Character.isValidCodePoint(cp))
+                                rep=new String(Character.toChars(cp));
+                        } catch (NumberFormatException e) {}
+                    }
+                    else
+                        rep=ENTITIES.get(ent);
+                    if(rep!=null) {
+                        sb.append(rep);
+                        i=semi+1;
+                        continue;
+                    }
+                }
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+}